@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store.benchmarks;
+
+import blob.store.Batch;
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import blob.store.Codec;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmark suites: store directories, codecs by name and content.
+ *
+ * @author Julien Ponge
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static File newDirectory() {
+        return Files.createTempDir();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static Codec codec(String name) {
+        if ("none".equals(name)) {
+            return Codec.none();
+        } else if ("gzip".equals(name)) {
+            return Codec.gzip();
+        } else if ("lz4".equals(name)) {
+            return Codec.lz4();
+        } else if ("block-deflate".equals(name)) {
+            return Codec.blockDeflate(-1);
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    /**
+     * Gives content that compresses to about half of its size, like typical documents do.
+     */
+    static byte[] content(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        for (int i = 0; i < size; i = i + 2) {
+            bytes[i] = 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes some content unique by stamping a counter over its first bytes.
+     */
+    static byte[] stamp(byte[] bytes, long counter) {
+        for (int i = 0; i < 8 && i < bytes.length; i++) {
+            bytes[i] = (byte) (counter >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Fills a store with keys that point to a few distinct blobs, in a single batch.
+     */
+    static BlobStore populate(File directory, BlobStoreOptions options, int keys, int distinctBlobs) {
+        BlobStore store = new BlobStore(directory, options);
+        byte[][] blobs = new byte[distinctBlobs][];
+        for (int i = 0; i < distinctBlobs; i++) {
+            blobs[i] = content(1024, i);
+        }
+        int batchSize = 10000;
+        for (int start = 0; start < keys; start = start + batchSize) {
+            Batch batch = store.batch();
+            for (int i = start; i < Math.min(keys, start + batchSize); i++) {
+                batch.put(key(i), ByteStreams.newInputStreamSupplier(blobs[i % distinctBlobs]));
+            }
+            batch.commit();
+        }
+        return store;
+    }
+
+    /**
+     * Reads a stream to its end, and gives the number of bytes that it had.
+     */
+    static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long count = 0L;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            count = count + read;
+        }
+        return count;
+    }
+
+    static String key(int i) {
+        return "key-" + i;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package blob.store.benchmarks;
+
+import blob.store.Batch;
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by an open store as its key count grows, starting with its in-memory index.
+ * <p/>
+ * Keys are 36 bytes long and point to a few distinct blobs. The <code>heapBytesPerKey</code>
+ * counter gives the heap growth per key from opening the store, measured after full garbage
+ * collections; the open time is only a by-product. For reference, a <code>HashMap</code> of
+ * string keys to hexadecimal digests takes about 150 bytes per entry on top of the keys.
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class FootprintBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int keys;
+
+    private File directory;
+    private BlobStore store;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+
+        public long heapBytesPerKey;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = Fixtures.newDirectory();
+        BlobStore populated = new BlobStore(directory);
+        byte[][] blobs = new byte[16][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = Fixtures.content(1024, i);
+        }
+        int batchSize = 10000;
+        for (int start = 0; start < keys; start = start + batchSize) {
+            Batch batch = populated.batch();
+            for (int i = start; i < Math.min(keys, start + batchSize); i++) {
+                batch.put(key(i), ByteStreams.newInputStreamSupplier(blobs[i % blobs.length]));
+            }
+            batch.commit();
+        }
+        populated.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeStore() {
+        store.close();
+        store = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public BlobStore open(Footprint footprint) {
+        long before = usedHeap();
+        store = new BlobStore(directory, new BlobStoreOptions());
+        footprint.heapBytesPerKey = (usedHeap() - before) / keys;
+        return store;
+    }
+
+    private static String key(int i) {
+        return "tenant/artifacts/" + (1000000000000000000L + i);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
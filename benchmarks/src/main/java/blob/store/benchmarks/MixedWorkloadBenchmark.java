@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store.benchmarks;
+
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-mostly workload where readers, writers and removers share a store, with and without
+ * the read cache.
+ * <p/>
+ * Readers and writers pick among keys that always exist, and removers put then remove keys of
+ * their own, so that the store keeps the same size whatever the relative throughputs.
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedWorkloadBenchmark {
+
+    private static final int KEYS = 10000;
+
+    @Param({"gzip", "lz4"})
+    public String codec;
+
+    @Param({"0", "67108864"})
+    public long cacheSize;
+
+    @Param({"16384"})
+    public int blobSize;
+
+    private File directory;
+    private BlobStore store;
+
+    @State(Scope.Thread)
+    public static class Worker {
+
+        Random random;
+        byte[] bytes;
+        long counter;
+
+        @Setup
+        public void setUp(MixedWorkloadBenchmark benchmark) {
+            random = new Random(Thread.currentThread().getId());
+            bytes = Fixtures.content(benchmark.blobSize, random.nextLong());
+        }
+
+        String nextKey() {
+            return Fixtures.key(random.nextInt(KEYS));
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        directory = Fixtures.newDirectory();
+        BlobStoreOptions options = new BlobStoreOptions().codec(Fixtures.codec(codec)).cacheSize(cacheSize);
+        store = new BlobStore(directory, options);
+        for (int i = 0; i < KEYS; i++) {
+            store.put(Fixtures.key(i), ByteStreams.newInputStreamSupplier(Fixtures.content(blobSize, i % 100)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public long get(Worker worker) throws IOException {
+        Optional<InputStream> blob = store.get(worker.nextKey());
+        if (!blob.isPresent()) {
+            return 0L;
+        }
+        InputStream in = blob.get();
+        try {
+            return Fixtures.drain(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void put(Worker worker) {
+        Fixtures.stamp(worker.bytes, worker.counter++);
+        store.put(worker.nextKey(), ByteStreams.newInputStreamSupplier(worker.bytes));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void putAndRemove(Worker worker) {
+        String key = "removed-" + Thread.currentThread().getId();
+        store.put(key, ByteStreams.newInputStreamSupplier(worker.bytes));
+        store.remove(key);
+    }
+}
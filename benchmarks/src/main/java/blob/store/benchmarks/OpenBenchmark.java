@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store.benchmarks;
+
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import blob.store.IndexFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open an existing store as its key count grows, for each index format.
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OpenBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int keys;
+
+    @Param({"TEXT", "BINARY"})
+    public IndexFormat indexFormat;
+
+    private File directory;
+    private BlobStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = Fixtures.newDirectory();
+        Fixtures.populate(directory, options(), keys, 16).close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeStore() {
+        store.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public BlobStore open() {
+        store = new BlobStore(directory, options());
+        return store;
+    }
+
+    private BlobStoreOptions options() {
+        return new BlobStoreOptions().indexFormat(indexFormat);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store.benchmarks;
+
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Put and get throughput for each codec across blob sizes.
+ * <p/>
+ * Each put stores new content under one of a thousand keys, so that the index stays small and
+ * replaced blobs get deleted as they would in a busy store. Gets read a whole blob.
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutGetBenchmark {
+
+    @Param({"gzip", "lz4", "block-deflate", "none"})
+    public String codec;
+
+    @Param({"1024", "65536", "1048576"})
+    public int blobSize;
+
+    private File directory;
+    private BlobStore store;
+
+    @State(Scope.Thread)
+    public static class Content {
+
+        byte[] bytes;
+        long counter;
+
+        @Setup
+        public void setUp(PutGetBenchmark benchmark) {
+            bytes = Fixtures.content(benchmark.blobSize, Thread.currentThread().getId());
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        directory = Fixtures.newDirectory();
+        store = new BlobStore(directory, new BlobStoreOptions().codec(Fixtures.codec(codec)));
+        store.put("existing", ByteStreams.newInputStreamSupplier(Fixtures.content(blobSize, 0L)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public void put(Content content) {
+        long counter = content.counter++;
+        Fixtures.stamp(content.bytes, counter);
+        store.put(Fixtures.key((int) (counter % 1000)), ByteStreams.newInputStreamSupplier(content.bytes));
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        InputStream in = store.get("existing").get();
+        try {
+            return Fixtures.drain(in);
+        } finally {
+            in.close();
+        }
+    }
+}
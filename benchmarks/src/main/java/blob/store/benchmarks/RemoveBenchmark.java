@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store.benchmarks;
+
+import blob.store.Batch;
+import blob.store.BlobStore;
+import blob.store.BlobStoreOptions;
+import blob.store.IndexFormat;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remove latency as the index grows.
+ * <p/>
+ * Each iteration removes a thousand keys, which get put back before the iteration starts, and
+ * the score is the time taken by these thousand removals. The keys share a few blobs, so that removals only touch the index.
+ *
+ * @author Julien Ponge
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = RemoveBenchmark.REMOVALS)
+@Measurement(iterations = 10, batchSize = RemoveBenchmark.REMOVALS)
+@Fork(1)
+public class RemoveBenchmark {
+
+    static final int REMOVALS = 1000;
+
+    @Param({"1000", "100000", "1000000"})
+    public int keys;
+
+    @Param({"TEXT", "BINARY"})
+    public IndexFormat indexFormat;
+
+    private File directory;
+    private BlobStore store;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = Fixtures.newDirectory();
+        store = Fixtures.populate(directory, new BlobStoreOptions().indexFormat(indexFormat), keys, 16);
+    }
+
+    @Setup(Level.Iteration)
+    public void putBackKeys() {
+        Batch batch = store.batch();
+        for (int i = 0; i < REMOVALS; i++) {
+            batch.put(Fixtures.key((next + i) % keys), ByteStreams.newInputStreamSupplier(Fixtures.content(1024, 0L)));
+        }
+        batch.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public void remove() {
+        store.remove(Fixtures.key(next % keys));
+        next = next + 1;
+    }
+}
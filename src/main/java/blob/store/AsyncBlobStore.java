@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An asynchronous facade to a blob store, whose operations run on a bounded pool of I/O threads
+ * and return <code>ListenableFuture</code> objects.
+ * <p/>
+ * Callers are never blocked: when the operations in flight reach their limits, new operations
+ * fail right away with a <code>RejectedExecutionException</code>, so that callers can shed load
+ * or retry later. Operations are limited by count, and the byte arrays that puts and gets hold
+ * in memory are also limited by their total size. A put is admitted by the size of its array, while
+ * a get reserves bytes as it reads the blob, and fails once it would go over the limit. A single
+ * operation larger than the byte limit still goes through when no other operation holds bytes.
+ * <p/>
+ * Puts from a data supplier stream the data to the store without holding it in memory, so they
+ * are only limited by count.
+ * <p/>
+ * Closing the facade waits for the operations in flight, but it does not close the blob store.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore
+ * @see com.google.common.util.concurrent.ListenableFuture
+ */
+public class AsyncBlobStore implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final BlobStore store;
+    private final ListeningExecutorService executor;
+    private final int maxInFlightOperations;
+    private final long maxInFlightBytes;
+    private final AtomicInteger inFlightOperations = new AtomicInteger();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    /**
+     * Creates an asynchronous facade to a blob store.
+     *
+     * @param store                 the blob store
+     * @param threads               the number of I/O threads
+     * @param maxInFlightOperations the maximum number of queued and running operations
+     * @param maxInFlightBytes      the maximum total size of the byte arrays being put or read
+     */
+    public AsyncBlobStore(BlobStore store, int threads, int maxInFlightOperations, long maxInFlightBytes) {
+        checkArgument(threads > 0, "The number of threads must be positive");
+        checkArgument(maxInFlightOperations > 0, "The maximum number of operations in flight must be positive");
+        checkArgument(maxInFlightBytes > 0L, "The maximum number of bytes in flight must be positive");
+        this.store = checkNotNull(store);
+        this.maxInFlightOperations = maxInFlightOperations;
+        this.maxInFlightBytes = maxInFlightBytes;
+        executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("blobstore-async-%d")
+                .build()));
+    }
+
+    /**
+     * Puts a blob entry.
+     *
+     * @param key  the blob key
+     * @param data the blob data, which must not be modified until the put completes
+     * @return the future completion of the put
+     */
+    public ListenableFuture<Void> putAsync(final String key, final byte[] data) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                store.put(key, ByteStreams.newInputStreamSupplier(data));
+                return null;
+            }
+        }, data.length);
+    }
+
+    /**
+     * Puts a blob entry. The data supplier is opened and read by an I/O thread, and the data is not
+     * counted against the byte limit.
+     *
+     * @param key      the blob key
+     * @param supplier the blob input data supplier
+     * @return the future completion of the put
+     */
+    public ListenableFuture<Void> putAsync(final String key, final InputSupplier<? extends InputStream> supplier) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                store.put(key, supplier);
+                return null;
+            }
+        }, 0L);
+    }
+
+    /**
+     * Reads a blob into memory. The read fails with a <code>RejectedExecutionException</code> when
+     * the blob data would take the bytes in flight over their limit.
+     *
+     * @param key the blob key
+     * @return the future blob data, or absent if there is no blob for the key
+     */
+    public ListenableFuture<Optional<byte[]>> getAsync(final String key) {
+        return submit(new Callable<Optional<byte[]>>() {
+            @Override
+            public Optional<byte[]> call() throws Exception {
+                Optional<InputStream> in = store.get(key);
+                if (!in.isPresent()) {
+                    return Optional.absent();
+                }
+                try {
+                    return Optional.of(read(in.get()));
+                } finally {
+                    in.get().close();
+                }
+            }
+        }, 0L);
+    }
+
+    /**
+     * Removes a blob entry.
+     *
+     * @param key the blob key
+     * @return the future completion of the removal
+     */
+    public ListenableFuture<Void> removeAsync(final String key) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                store.remove(key);
+                return null;
+            }
+        }, 0L);
+    }
+
+    /**
+     * @return the number of queued and running operations
+     */
+    public int getInFlightOperations() {
+        return inFlightOperations.get();
+    }
+
+    /**
+     * @return the total size of the byte arrays being put or read
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    /**
+     * Reads a blob stream, reserving bytes in flight for the data read so far.
+     */
+    private byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long reserved = 0L;
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                long total = inFlightBytes.addAndGet(count);
+                reserved = reserved + count;
+                if (total > maxInFlightBytes && total != reserved) {
+                    throw new RejectedExecutionException("Too many blob bytes in flight");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inFlightBytes.addAndGet(-reserved);
+        }
+    }
+
+    private <T> ListenableFuture<T> submit(final Callable<T> operation, final long bytes) {
+        if (!admit(bytes)) {
+            return Futures.immediateFailedFuture(new RejectedExecutionException("Too many blob store operations in flight"));
+        }
+        // Released before the future completes, or when it gets cancelled before running
+        final AtomicBoolean released = new AtomicBoolean();
+        ListenableFuture<T> future;
+        try {
+            future = executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return operation.call();
+                    } finally {
+                        if (released.compareAndSet(false, true)) {
+                            release(bytes);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(bytes);
+            return Futures.immediateFailedFuture(e);
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    release(bytes);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private boolean admit(long bytes) {
+        if (inFlightOperations.incrementAndGet() > maxInFlightOperations) {
+            inFlightOperations.decrementAndGet();
+            return false;
+        }
+        long total = inFlightBytes.addAndGet(bytes);
+        if (total > maxInFlightBytes && total != bytes) {
+            release(bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+        inFlightOperations.decrementAndGet();
+    }
+
+    /**
+     * Stops accepting operations, and waits for the operations in flight to complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
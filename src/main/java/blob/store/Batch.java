@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.InputSupplier;
+
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A batch of puts and removals, which are applied together when the batch is committed.
+ * <p/>
+ * Committing compresses the blobs of the batch in parallel with the executor that the batch
+ * was started with, and then writes all the index entries at once. This is much cheaper than
+ * a put or a removal at a time for bulk loads and bulk deletes. When a blob of the batch cannot
+ * be stored, none of the changes is applied.
+ * <p/>
+ * The last change of a key in a batch wins. Batches are meant to be used by a single thread,
+ * and committed once:
+ * <pre>
+ * store.batch(executor)
+ *     .put("foo", fooSupplier)
+ *     .put("bar", barSupplier)
+ *     .remove("baz")
+ *     .commit();
+ * </pre>
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore#batch(java.util.concurrent.Executor)
+ */
+public final class Batch {
+
+    private final BlobStore store;
+    private final Executor executor;
+    private final Map<String, InputSupplier<? extends InputStream>> changes = new LinkedHashMap<String, InputSupplier<? extends InputStream>>();
+    private boolean committed;
+
+    Batch(BlobStore store, Executor executor) {
+        this.store = store;
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Adds a put to the batch.
+     *
+     * @param key      the blob key
+     * @param supplier the blob input data supplier
+     * @return this batch
+     */
+    public Batch put(String key, InputSupplier<? extends InputStream> supplier) {
+        checkState(!committed, "The batch has already been committed");
+        changes.put(checkNotNull(key), checkNotNull(supplier));
+        return this;
+    }
+
+    /**
+     * Adds a removal to the batch. Keys that are not in the store are ignored.
+     *
+     * @param key the blob key
+     * @return this batch
+     */
+    public Batch remove(String key) {
+        checkState(!committed, "The batch has already been committed");
+        changes.put(checkNotNull(key), null);
+        return this;
+    }
+
+    /**
+     * @return the number of keys changed by this batch
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Applies the changes of this batch.
+     *
+     * @throws BlobStoreException if the batch could not be committed, in which case none of its changes is applied
+     */
+    public void commit() {
+        checkState(!committed, "The batch has already been committed");
+        committed = true;
+        store.commit(changes, executor);
+    }
+}
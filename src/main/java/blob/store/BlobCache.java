@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * A cache of decompressed blobs bounded by their total size, and keyed by SHA1 so that keys
+ * sharing a blob also share its cache entry.
+ * <p/>
+ * Blobs larger than a sixteenth of the cache are not cached, so that a few large blobs do not
+ * evict all the small and frequently read ones.
+ *
+ * @author Julien Ponge
+ */
+final class BlobCache {
+
+    private static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final Cache<String, byte[]> cache;
+    private final int entryLimit;
+
+    BlobCache(long maxBytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String sha1, byte[] data) {
+                        return data.length;
+                    }
+                })
+                .build();
+        entryLimit = (int) Math.min(maxBytes / 16, MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * @return a stream over the cached blob, or <code>null</code> if it is not cached
+     */
+    InputStream get(String sha1) {
+        byte[] data = cache.getIfPresent(sha1);
+        return (data != null) ? new ByteArrayInputStream(data) : null;
+    }
+
+    /**
+     * Caches a blob if it is small enough.
+     *
+     * @param sha1 the blob SHA1
+     * @param in   a stream over the decompressed blob, which gets closed if the blob is cached
+     * @return a stream over the blob that replaces <code>in</code>
+     */
+    InputStream fill(String sha1, InputStream in) throws IOException {
+        byte[] buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, entryLimit + 1)];
+        int length = 0;
+        boolean success = false;
+        try {
+            while (true) {
+                int count = ByteStreams.read(in, buffer, length, buffer.length - length);
+                length = length + count;
+                if (length < buffer.length) {
+                    break;
+                }
+                if (length > entryLimit) {
+                    success = true;
+                    return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), in);
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(2L * buffer.length, entryLimit + 1L));
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                in.close();
+            }
+        }
+        in.close();
+        byte[] data = (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+        cache.put(sha1, data);
+        return new ByteArrayInputStream(data);
+    }
+
+    void invalidate(String sha1) {
+        cache.invalidate(sha1);
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+}
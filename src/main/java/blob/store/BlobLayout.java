@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Where blob files live in a store directory.
+ * <p/>
+ * Blob files are either right in the store directory, or fanned out Git-style in one or two levels
+ * of sub-directories named after the first bytes of the SHA1, such as <code>ab/cdef...</code>.
+ * <p/>
+ * The layouts that may hold blob files are recorded in a <code>layout</code> file, the first one
+ * being the layout of new blob files. Stores without such a file are flat.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions#fanOut(int)
+ */
+final class BlobLayout {
+
+    static final int MAX_LEVELS = 2;
+    static final String FILENAME = "layout";
+
+    private static final BlobLayout[] LAYOUTS = {new BlobLayout(0), new BlobLayout(1), new BlobLayout(2)};
+
+    private final int levels;
+
+    private BlobLayout(int levels) {
+        this.levels = levels;
+    }
+
+    static BlobLayout of(int levels) {
+        checkArgument(levels >= 0 && levels <= MAX_LEVELS, "Invalid fan-out: %s", levels);
+        return LAYOUTS[levels];
+    }
+
+    int levels() {
+        return levels;
+    }
+
+    File file(File root, String sha1) {
+        if (levels == 0) {
+            return new File(root, sha1);
+        }
+        File directory = new File(root, sha1.substring(0, 2));
+        if (levels == 2) {
+            directory = new File(directory, sha1.substring(2, 4));
+        }
+        return new File(directory, sha1.substring(levels * 2));
+    }
+
+    /**
+     * Walks the blob files of this layout. Directories are listed as the walk reaches them.
+     *
+     * @return the SHA1 of each blob file
+     */
+    Iterator<String> digests(final File root) {
+        final LinkedList<String> prefixes = new LinkedList<String>();
+        prefixes.add("");
+        return new AbstractIterator<String>() {
+            Iterator<String> names = Iterators.emptyIterator();
+            String prefix;
+
+            @Override
+            protected String computeNext() {
+                while (true) {
+                    while (names.hasNext()) {
+                        String digest = found(prefix, names.next());
+                        if (digest != null) {
+                            return digest;
+                        }
+                    }
+                    if (prefixes.isEmpty()) {
+                        return endOfData();
+                    }
+                    prefix = prefixes.removeFirst();
+                    String[] listed = directory(root, prefix).list();
+                    names = (listed != null) ? Iterators.forArray(listed) : Iterators.<String>emptyIterator();
+                }
+            }
+
+            private String found(String prefix, String name) {
+                if (prefix.length() == levels * 2) {
+                    String digest = prefix + name;
+                    return Sha1.isValid(digest) ? digest : null;
+                }
+                if (isShardName(name)) {
+                    prefixes.add(prefix + name);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static File directory(File root, String prefix) {
+        File directory = root;
+        for (int i = 0; i < prefix.length(); i = i + 2) {
+            directory = new File(directory, prefix.substring(i, i + 2));
+        }
+        return directory;
+    }
+
+    private static boolean isShardName(String name) {
+        if (name.length() != 2) {
+            return false;
+        }
+        for (int i = 0; i < 2; i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the recorded layouts, or <code>null</code> if there is no layout file
+     */
+    static BlobLayout[] read(File root) throws IOException {
+        File file = new File(root, FILENAME);
+        File temp = new File(root, FILENAME + BlobStore.TEMP_FILE_SUFFIX);
+        if (!file.exists() && temp.exists()) {
+            // A crash came between deleting the layout file and renaming its complete replacement
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        List<BlobLayout> layouts = new ArrayList<BlobLayout>();
+        for (String levels : Splitter.on(',').trimResults().omitEmptyStrings().split(Files.toString(file, UTF_8))) {
+            try {
+                layouts.add(of(Integer.parseInt(levels)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid layout file " + file, e);
+            }
+        }
+        if (layouts.isEmpty()) {
+            throw new IOException("Invalid layout file " + file);
+        }
+        return layouts.toArray(new BlobLayout[layouts.size()]);
+    }
+
+    static void write(File root, BlobLayout[] layouts) throws IOException {
+        List<Integer> levels = new ArrayList<Integer>();
+        for (BlobLayout layout : layouts) {
+            levels.add(layout.levels);
+        }
+        File file = new File(root, FILENAME);
+        File temp = new File(root, FILENAME + BlobStore.TEMP_FILE_SUFFIX);
+        Files.write(Joiner.on(',').join(levels) + "\n", temp, UTF_8);
+        if (!temp.renameTo(file)) {
+            // Renaming over an existing file may not be supported
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+    }
+}
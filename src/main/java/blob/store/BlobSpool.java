@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.Closeables;
+
+import java.io.*;
+
+/**
+ * An output stream for a blob being stored, which keeps the data in memory up to a limit, and
+ * spills it to a temporary file beyond that limit.
+ * <p/>
+ * Blobs that stay in memory can go to a pack file without ever touching the file system as files
+ * of their own. Without a memory limit, the data goes straight to a temporary file.
+ *
+ * @author Julien Ponge
+ * @see blob.store.PackStore
+ */
+final class BlobSpool extends OutputStream {
+
+    private final File directory;
+    private final int memoryLimit;
+    private ByteArrayOutputStream memory;
+    private File file;
+    private OutputStream fileOutputStream;
+    private long length;
+
+    BlobSpool(File directory, int memoryLimit) throws IOException {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        if (memoryLimit > 0) {
+            memory = new ByteArrayOutputStream(Math.min(memoryLimit, 8192));
+        } else {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile(BlobStore.TEMP_FILE_PREFIX, BlobStore.TEMP_FILE_SUFFIX, directory);
+        fileOutputStream = new FileOutputStream(file);
+        if (memory != null) {
+            memory.writeTo(fileOutputStream);
+            memory = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        this.length = this.length + length;
+        if (memory != null && memory.size() + length > memoryLimit) {
+            spill();
+        }
+        if (memory != null) {
+            memory.write(bytes, offset, length);
+        } else {
+            fileOutputStream.write(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+        }
+    }
+
+    boolean isInMemory() {
+        return memory != null;
+    }
+
+    /**
+     * @return the data, when it is in memory
+     */
+    byte[] toByteArray() {
+        return memory.toByteArray();
+    }
+
+    /**
+     * @return the temporary file, when the data has been spilled
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Gives the number of bytes written so far.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Deletes the temporary file, if it is still there.
+     *
+     * @return <code>true</code> if the file was there and got deleted
+     */
+    boolean delete() {
+        Closeables.closeQuietly(fileOutputStream);
+        return file != null && file.exists() && file.delete();
+    }
+}
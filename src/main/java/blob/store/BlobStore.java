@@ -22,50 +22,163 @@
 
 package blob.store;
 
+import blob.store.Metrics.Counter;
+import blob.store.Metrics.Timer;
 import com.google.common.base.Optional;
-import com.google.common.base.Splitter;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.hash.Hasher;
 import com.google.common.io.ByteProcessor;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.InputSupplier;
+import com.google.common.io.LimitInputStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
-import static com.google.common.base.Charsets.UTF_8;
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.hash.Hashing.sha1;
 import static com.google.common.io.ByteStreams.readBytes;
-import static com.google.common.io.Files.append;
-import static com.google.common.io.Files.readLines;
-import static java.util.Collections.unmodifiableMap;
 
 /**
  * A key / value blob storage engine.
  * <p/>
  * Each blob can be pointed to by many key entries. The storage works
  * with an index file to map keys to blob SHA1 filenames, and each
- * blob is stored as a GZIP-compressed file named after the content SHA1.
+ * blob is stored as a compressed file named after the content SHA1. Blobs are
+ * compressed with GZIP by default, and a store may use another <code>Codec</code>
+ * while keeping the blobs written with previous codecs readable.
+ * Blobs are reference-counted, so that a blob is only deleted once the
+ * last key pointing to it has been removed or overwritten.
+ * <p/>
+ * Blobs can also be split into content-defined chunks, which are stored and
+ * deduplicated just like blobs. A chunked blob is then a manifest listing its chunks,
+ * and reading it stitches the chunks together as they are needed.
+ * <p/>
+ * Small blobs can be appended to segmented pack files instead of getting a file
+ * of their own, which spares inodes and directory entries in stores with many
+ * small blobs. Blob files can also be fanned out in sub-directories, and a flat
+ * store can be migrated to such a layout while it keeps serving requests.
+ * <p/>
+ * Small decompressed blobs can be kept in a read cache bounded by its size in bytes, which
+ * spares decompressing frequently read blobs again and again.
+ * <p/>
+ * A store can also be bounded in stored bytes or in keys, so that it works as a disk cache: once
+ * it goes over its capacity, blobs get evicted in the background along with every key pointing to
+ * them, in the order of an <code>EvictionPolicy</code>.
+ * <p/>
+ * A blob store instance is safe for use by concurrent threads. Each <code>put</code>
+ * compresses to its own temporary file, so that unrelated puts proceed in parallel.
+ * Updates are serialized per key and per blob SHA1 through lock stripes, which
+ * <code>get</code> never takes, so that reads do not wait behind slow puts. Reads still take
+ * short-lived locks: the read lock of an index segment, the pack locks for packed blobs, and
+ * the blob table stripe of the blob whose access gets recorded in a store with a capacity.
+ * <p/>
+ * Puts and removals can also be grouped in a <code>Batch</code>, whose blobs get compressed in
+ * parallel and whose index entries are written at once. Large single blobs can also have their
+ * segments compressed by a pool of threads, while the calling thread reads and hashes them.
+ * <p/>
+ * Index entries are appended to a log file that stays open, and concurrent puts get their
+ * entries committed in groups. Removals append tombstones, and the log gets compacted in the
+ * background. The index can also be kept in a memory-mapped binary format, so that opening
+ * a store with many keys does not need to load them all. Durability, compaction and the index
+ * format are set through <code>BlobStoreOptions</code>.
+ * <p/>
+ * Stores report the latency of their operations and what happens to their data to the
+ * <code>Metrics</code> set in the options, which can be exported through JMX.
+ * Blob stores should be closed after use. Opening a store recovers from a crash by cutting a
+ * half-written index record and deleting leftover temporary files, while <code>scrub</code>
+ * checks the content of every stored blob.
  * <p/>
  * Each public method may throw an <code>BlobStoreException</code> unchecked
  * exception, which in turns wraps potential causal exceptions.
  *
  * @author Julien Ponge
  * @see blob.store.BlobStoreException
+ * @see blob.store.BlobStoreOptions
+ * @see blob.store.Codec
+ * @see blob.store.Metrics
  * @see com.google.common.io.InputSupplier
  * @see com.google.common.base.Optional
  */
-public class BlobStore {
+public class BlobStore implements Closeable {
 
-    private static final String INDEX_FILENAME = "index";
-    private static final String INDEX_LINE_SEPARATOR = " => ";
+    static final String TEMP_FILE_PREFIX = "put-";
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int LOCK_STRIPES = 64;
+    private static final int HASH_BUFFER_SIZE = 8192;
+    private static final int SEGMENT_SIZE = 16 * Codec.SEGMENT_ALIGNMENT;
+    private static final double EVICTION_TARGET = 0.9;
+    private static final int EVICTION_CANDIDATES = 1024;
 
     private final File workingDirectory;
-    private final File indexFile;
-    private final Map<String, String> index = newHashMap();
+    private final File manifestDirectory;
+    private final Index index;
+    private final PackStore packs;
+    private final BlobTable blobs;
+    private final LockStripes keyLocks = new LockStripes(LOCK_STRIPES);
+    private final LockStripes blobLocks = new LockStripes(LOCK_STRIPES);
+    private final boolean hashFirst;
+    private final int hashFirstSpoolSize;
+    private final boolean deferredBlobRemoval;
+    private final Codec codec;
+    private final boolean chunking;
+    private final int averageChunkSize;
+    private final int packThreshold;
+    private final BlobCache cache;
+    private final int compressionThreads;
+    private final ExecutorService compressors;
+    private final Metrics metrics;
+    private final Object migrationLock = new Object();
+    private volatile BlobLayout[] layouts;
+    private final Queue<String> unreferencedBlobs = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean collectionScheduled = new AtomicBoolean();
+    private final ExecutorService collector;
+    private final long capacityBytes;
+    private final long capacityKeys;
+    private final EvictionPolicy evictionPolicy;
+    private final boolean bounded;
+    private final Object evictionLock = new Object();
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final ExecutorService evictor;
 
     /**
      * Constructs a new blob store in a directory.
@@ -73,12 +186,70 @@ public class BlobStore {
      * @param workingDirectory the working directory to be reused or created
      */
     public BlobStore(File workingDirectory) {
+        this(workingDirectory, new BlobStoreOptions());
+    }
+
+    /**
+     * Constructs a new blob store in a directory.
+     *
+     * @param workingDirectory the working directory to be reused or created
+     * @param options          the store options
+     */
+    public BlobStore(File workingDirectory, BlobStoreOptions options) {
         ensureValidWorkingDirectory(workingDirectory);
+        metrics = options.getMetrics();
         this.workingDirectory = workingDirectory;
+        manifestDirectory = new File(workingDirectory, Manifest.DIRECTORY);
+        layouts = openLayouts(options.getFanOut());
+        deleteTemporaryFiles();
+        capacityBytes = options.getCapacityBytes();
+        capacityKeys = options.getCapacityKeys();
+        evictionPolicy = options.getEvictionPolicy();
+        bounded = capacityBytes > 0L || capacityKeys > 0L;
+        blobs = new BlobTable(bounded);
+        index = new Index(workingDirectory, options);
+        index.countReferences(blobs);
+        countChunkReferences();
+        try {
+            packs = new PackStore(new File(workingDirectory, PackStore.DIRECTORY), options.getPackSegmentSize());
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+        packs.dropUnreferenced(blobs);
 
-        indexFile = new File(workingDirectory, INDEX_FILENAME);
-        if (indexFile.exists()) {
-            populateIndex();
+        hashFirst = options.isHashFirst();
+        hashFirstSpoolSize = options.getHashFirstSpoolSize();
+        deferredBlobRemoval = options.isDeferredBlobRemoval();
+        codec = options.getCodec();
+        chunking = options.isChunking();
+        averageChunkSize = options.getAverageChunkSize();
+        packThreshold = options.getPackThreshold();
+        cache = (options.getCacheSize() > 0L) ? new BlobCache(options.getCacheSize()) : null;
+        compressionThreads = options.getCompressionThreads();
+        if (compressionThreads > 1) {
+            compressors = Executors.newFixedThreadPool(compressionThreads, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("blobstore-compressor-%d")
+                    .build());
+        } else {
+            compressors = null;
+        }
+        if (deferredBlobRemoval) {
+            collector = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("blobstore-blob-collector-%d")
+                    .build());
+        } else {
+            collector = null;
+        }
+        if (bounded) {
+            trackIndexedBlobs();
+            evictor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("blobstore-evictor-%d")
+                    .build());
+        } else {
+            evictor = null;
         }
     }
 
@@ -92,43 +263,314 @@ public class BlobStore {
         }
     }
 
-    private void populateIndex() {
+    /**
+     * Deletes the temporary files that puts left behind when the process died.
+     */
+    private void deleteTemporaryFiles() {
+        File[] files = workingDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX) && file.isFile() && file.delete()) {
+                metrics.count(Counter.DISCARDED_TEMP_FILES, 1L);
+            }
+        }
+    }
+
+    /**
+     * Puts the layout from the options first, so that new blob files go there, and keeps the
+     * layouts that may still hold blob files until they get migrated.
+     */
+    private BlobLayout[] openLayouts(int fanOut) {
+        try {
+            BlobLayout[] recorded = BlobLayout.read(workingDirectory);
+            if (fanOut < 0) {
+                fanOut = (recorded != null) ? recorded[0].levels() : 0;
+            }
+            BlobLayout target = BlobLayout.of(fanOut);
+            boolean newStore = !new File(workingDirectory, Index.INDEX_FILENAME).exists()
+                    && !new File(workingDirectory, IndexSnapshot.FILENAME).exists();
+            if (recorded == null && (newStore || target.levels() == 0)) {
+                if (target.levels() > 0) {
+                    BlobLayout.write(workingDirectory, new BlobLayout[]{target});
+                }
+                return new BlobLayout[]{target};
+            }
+            if (recorded == null) {
+                recorded = new BlobLayout[]{BlobLayout.of(0)};
+            }
+            List<BlobLayout> result = new ArrayList<BlobLayout>();
+            result.add(target);
+            for (BlobLayout layout : recorded) {
+                if (!result.contains(layout)) {
+                    result.add(layout);
+                }
+            }
+            BlobLayout[] layouts = result.toArray(new BlobLayout[result.size()]);
+            if (!Arrays.equals(layouts, recorded)) {
+                BlobLayout.write(workingDirectory, layouts);
+            }
+            return layouts;
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    private void countChunkReferences() {
+        String[] names = manifestDirectory.list();
+        if (names == null) {
+            return;
+        }
+        // Manifests only hold references to their chunks while they are referenced themselves
+        List<String> pending = new ArrayList<String>(names.length);
+        for (String name : names) {
+            if (Sha1.isValid(name)) {
+                pending.add(name);
+            }
+        }
         try {
-            Splitter splitter = Splitter.on(INDEX_LINE_SEPARATOR);
-            for (String line : readLines(indexFile, UTF_8)) {
-                Iterator<String> iterator = splitter.split(line).iterator();
-                index.put(iterator.next(), iterator.next());
+            boolean counted = true;
+            while (counted) {
+                counted = false;
+                Iterator<String> iterator = pending.iterator();
+                while (iterator.hasNext()) {
+                    String sha1 = iterator.next();
+                    if (blobs.references(sha1) > 0) {
+                        Manifest manifest = Manifest.read(manifestFile(sha1));
+                        for (int i = 0; i < manifest.size(); i++) {
+                            blobs.retain(manifest.digest(i));
+                        }
+                        iterator.remove();
+                        counted = true;
+                    }
+                }
             }
         } catch (IOException e) {
-            throw new BlobStoreException("Error while reading from the index file", e);
-        } catch (NoSuchElementException e) {
-            throw new BlobStoreException("Corrupt index file", e);
+            throw new BlobStoreException(e);
         }
     }
 
     /**
      * Index accessor.
+     * <p/>
+     * The returned map does not copy the index: lookups and iterations go to the underlying
+     * index structures, and iterations are weakly consistent with concurrent updates.
      *
      * @return an unmodifiable view over the index.
      */
     public Map<String, String> getIndex() {
-        return unmodifiableMap(index);
+        return index.asMap();
+    }
+
+    /**
+     * Lists the index entries whose key starts with a prefix, in key order.
+     * <p/>
+     * Keys are ordered by their code points, that is, like their UTF-8 bytes. Entries are streamed
+     * lazily from seeks into the sorted in-memory keys and, with a binary index, the sorted
+     * snapshot, so this costs logarithmic lookups and the matching entries rather than a full
+     * index scan. The first scan of a store sorts its in-memory keys. The iteration is weakly
+     * consistent with concurrent updates.
+     *
+     * @param prefix the key prefix, possibly empty
+     * @return an unmodifiable iterator over the key to SHA1 entries
+     */
+    public Iterator<Map.Entry<String, String>> scan(String prefix) {
+        return Iterators.unmodifiableIterator(index.scan(checkNotNull(prefix)));
+    }
+
+    /**
+     * Lists a page of index entries, in key order.
+     * <p/>
+     * Pages are chained by passing the last key of a page as the <code>startAfter</code> key of the
+     * next one. Like <code>scan</code>, entries are streamed lazily.
+     *
+     * @param startAfter the key to list entries after, or <code>null</code> to start with the first key
+     * @param limit      the maximum number of entries
+     * @return an unmodifiable iterator over the key to SHA1 entries
+     * @see #scan(String)
+     */
+    public Iterator<Map.Entry<String, String>> list(String startAfter, int limit) {
+        checkArgument(limit >= 0, "The limit cannot be negative");
+        PeekingIterator<Map.Entry<String, String>> entries =
+                Iterators.peekingIterator(index.scanFrom((startAfter != null) ? startAfter : ""));
+        if (startAfter != null && entries.hasNext() && entries.peek().getKey().equals(startAfter)) {
+            entries.next();
+        }
+        return Iterators.unmodifiableIterator(Iterators.limit(entries, limit));
     }
 
     /**
      * Put a blob entry.
+     * <p/>
+     * Depending on the store options, the data is either compressed while it is being hashed,
+     * or hashed first so that duplicate content is never compressed. It may also be split into
+     * chunks.
      *
      * @param key      the blob key
      * @param supplier the blob input data supplier
      * @see com.google.common.io.InputSupplier
+     * @see blob.store.BlobStoreOptions#hashFirst(boolean)
+     * @see blob.store.BlobStoreOptions#chunking(boolean)
      */
     public void put(String key, InputSupplier<? extends InputStream> supplier) {
-        File tempFile = new File(workingDirectory, "TEMP");
-        File blobFile = null;
+        long start = System.nanoTime();
+        try {
+            putBlob(key, supplier);
+        } finally {
+            metrics.time(Timer.PUT, System.nanoTime() - start);
+        }
+    }
+
+    private void putBlob(String key, InputSupplier<? extends InputStream> supplier) {
+        index.checkKey(key);
+        if (hashFirst) {
+            putHashingFirst(key, supplier);
+        } else {
+            putContent(key, supplier, null);
+        }
+    }
+
+    /**
+     * Put a blob entry whose SHA1 is already known to the caller.
+     * <p/>
+     * When a blob with that SHA1 is already stored, this only updates the index and the data
+     * supplier is not even opened. Otherwise the data is stored, and the SHA1 is checked.
+     *
+     * @param key      the blob key
+     * @param supplier the blob input data supplier
+     * @param sha1     the hexadecimal SHA1 of the blob data
+     * @throws BlobStoreException if the data does not match the SHA1
+     * @see com.google.common.io.InputSupplier
+     */
+    public void put(String key, InputSupplier<? extends InputStream> supplier, String sha1) {
+        long start = System.nanoTime();
+        try {
+            putBlob(key, supplier, sha1);
+        } finally {
+            metrics.time(Timer.PUT, System.nanoTime() - start);
+        }
+    }
+
+    private void putBlob(String key, InputSupplier<? extends InputStream> supplier, String sha1) {
+        index.checkKey(key);
+        if (!Sha1.isValid(sha1)) {
+            throw new BlobStoreException("Not a SHA1 digest: " + sha1);
+        }
+        try {
+            String digest = sha1.toLowerCase(Locale.ENGLISH);
+            if (storeBlobAndIndex(key, digest, null, null)) {
+                metrics.count(Counter.DEDUPLICATED_BLOBS, 1L);
+            } else {
+                putContent(key, supplier, digest);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    private void putContent(String key, InputSupplier<? extends InputStream> supplier, String expectedSha1) {
+        StagedBlob blob = null;
+        try {
+            blob = stage(supplier);
+            if (expectedSha1 != null && !expectedSha1.equals(blob.sha1)) {
+                throw new BlobStoreException("Expected a SHA1 of " + expectedSha1 + " but got " + blob.sha1);
+            }
+            Manifest chunks = (blob.spool != null) ? blob.takeChunks() : null;
+            storeBlobAndIndex(key, blob.sha1, blob.spool, chunks);
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        } finally {
+            if (blob != null) {
+                blob.discard();
+            }
+        }
+    }
+
+    private StagedBlob stage(InputSupplier<? extends InputStream> supplier) throws IOException {
+        long start = System.nanoTime();
+        StagedBlob blob;
+        if (chunking) {
+            blob = stageChunking(supplier);
+        } else {
+            blob = (compressors != null) ? stageInParallel(supplier) : stageCompressing(supplier);
+        }
+        metrics.time(Timer.STAGE, System.nanoTime() - start);
+        metrics.count(Counter.BYTES_IN, blob.length);
+        return blob;
+    }
+
+    /**
+     * Compresses the segments of a large blob in parallel, while the calling thread reads and
+     * hashes them. Small blobs, and codecs that cannot compress segments on their own, go through
+     * <code>stageCompressing</code>.
+     */
+    private StagedBlob stageInParallel(InputSupplier<? extends InputStream> supplier) throws IOException {
+        byte[] segment = new byte[SEGMENT_SIZE];
+        byte[] header = codec.compressSegment(segment, 0, 0, true, false);
+        if (header == null) {
+            return stageCompressing(supplier);
+        }
+        StagedBlob blob = new StagedBlob();
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        boolean staged = false;
+        InputStream in = supplier.getInput();
+
+        try {
+            int length = ByteStreams.read(in, segment, 0, segment.length);
+            if (length < segment.length) {
+                return stageCompressing(ByteStreams.newInputStreamSupplier(segment, 0, length));
+            }
+
+            Hasher hasher = sha1().newHasher();
+            blob.spool = new BlobSpool(workingDirectory, packThreshold);
+            blob.spool.write(header);
+            while (length > 0) {
+                // Read one segment ahead, so that the last segment is known as such
+                byte[] next = new byte[SEGMENT_SIZE];
+                int nextLength = ByteStreams.read(in, next, 0, next.length);
+                hasher.putBytes(segment, 0, length);
+                blob.length = blob.length + length;
+                pending.add(compressors.submit(new SegmentTask(segment, length, nextLength == 0)));
+                while (pending.size() > compressionThreads) {
+                    blob.spool.write(Uninterruptibles.getUninterruptibly(pending.removeFirst()));
+                }
+                segment = next;
+                length = nextLength;
+            }
+            while (!pending.isEmpty()) {
+                blob.spool.write(Uninterruptibles.getUninterruptibly(pending.removeFirst()));
+            }
+            blob.spool.close();
+            blob.sha1 = hasher.hash().toString();
+            staged = true;
+            return blob;
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new BlobStoreException(e.getCause());
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            in.close();
+            if (!staged) {
+                blob.discard();
+            }
+        }
+    }
+
+    private StagedBlob stageCompressing(InputSupplier<? extends InputStream> supplier) throws IOException {
+        final StagedBlob blob = new StagedBlob();
+        OutputStream blobOutputStream = null;
+        boolean staged = false;
 
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
-            final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream);
+            blob.spool = new BlobSpool(workingDirectory, packThreshold);
+            blobOutputStream = codec.newOutputStream(blob.spool);
+            final OutputStream out = blobOutputStream;
 
             ByteProcessor<String> processor = new ByteProcessor<String>() {
                 Hasher hasher = sha1().newHasher();
@@ -136,7 +578,8 @@ public class BlobStore {
                 @Override
                 public boolean processBytes(byte[] bytes, int offset, int length) throws IOException {
                     hasher.putBytes(bytes, offset, length);
-                    gzipOutputStream.write(bytes, offset, length);
+                    blob.length = blob.length + length;
+                    out.write(bytes, offset, length);
                     return true;
                 }
 
@@ -146,99 +589,1454 @@ public class BlobStore {
                 }
             };
 
-            // Compress the blob files and compute the SHA1
-            String sha1 = readBytes(supplier, processor);
-            gzipOutputStream.close();
-            blobFile = new File(workingDirectory, sha1);
-            if (!blobFile.exists()) {
-                if (!tempFile.renameTo(blobFile)) {
-                    throw new BlobStoreException("Could not rename " + tempFile + " to " + sha1);
-                }
+            // Compress the blob files and compute the SHA1, without holding any lock
+            blob.sha1 = readBytes(supplier, processor);
+            blobOutputStream.close();
+            blobOutputStream = null;
+            staged = true;
+            return blob;
+
+        } finally {
+            // Do our best to clean up the files, but do not check the return values
+            Closeables.closeQuietly(blobOutputStream);
+            if (!staged) {
+                blob.discard();
             }
+        }
+    }
 
-            // Update the index
-            index.put(key, sha1);
-            append(indexLineFor(key, sha1), indexFile, UTF_8);
+    private void putHashingFirst(String key, InputSupplier<? extends InputStream> supplier) {
+        try {
+            // Small inputs are spooled, so that new content does not need to be read twice
+            byte[] spool = new byte[hashFirstSpoolSize + 1];
+            int spooled;
+            long length;
+            Hasher hasher = sha1().newHasher();
+            InputStream in = supplier.getInput();
+            try {
+                spooled = ByteStreams.read(in, spool, 0, spool.length);
+                hasher.putBytes(spool, 0, spooled);
+                length = spooled;
+                if (spooled == spool.length) {
+                    byte[] buffer = new byte[HASH_BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        hasher.putBytes(buffer, 0, read);
+                        length = length + read;
+                    }
+                }
+            } finally {
+                in.close();
+            }
 
+            String sha1 = hasher.hash().toString();
+            if (storeBlobAndIndex(key, sha1, null, null)) {
+                metrics.count(Counter.DEDUPLICATED_BLOBS, 1L);
+                metrics.count(Counter.BYTES_IN, length);
+            } else {
+                if (spooled <= hashFirstSpoolSize) {
+                    putContent(key, ByteStreams.newInputStreamSupplier(spool, 0, spooled), sha1);
+                } else {
+                    putContent(key, supplier, sha1);
+                }
+            }
         } catch (IOException e) {
-            // Do our best to clean up the files, but do not check the return values
-            if (tempFile.exists()) {
-                tempFile.delete();
+            throw new BlobStoreException(e);
+        }
+    }
+
+    private StagedBlob stageChunking(InputSupplier<? extends InputStream> supplier) throws IOException {
+        StagedBlob blob = new StagedBlob();
+        blob.chunks = new Manifest();
+        boolean staged = false;
+
+        try {
+            // Each chunk is pinned with a reference as soon as it is stored, so that it cannot vanish
+            Hasher hasher = sha1().newHasher();
+            InputStream in = supplier.getInput();
+            try {
+                Chunker chunker = new Chunker(in, averageChunkSize);
+                while (chunker.next()) {
+                    hasher.putBytes(chunker.buffer(), chunker.offset(), chunker.length());
+                    blob.length = blob.length + chunker.length();
+                    String digest = sha1().hashBytes(chunker.buffer(), chunker.offset(), chunker.length()).toString();
+                    pinChunk(digest, chunker.buffer(), chunker.offset(), chunker.length());
+                    blob.chunks.add(digest, chunker.length());
+                }
+            } finally {
+                in.close();
             }
-            if (blobFile != null && blobFile.exists()) {
-                blobFile.delete();
+            blob.sha1 = hasher.hash().toString();
+            if (blob.chunks.size() == 0) {
+                pinChunk(blob.sha1, new byte[0], 0, 0);
+                blob.chunks.add(blob.sha1, 0);
+            }
+            // A single chunk is the blob itself, and needs no manifest
+            if (blob.chunks.size() > 1) {
+                blob.spool = new BlobSpool(workingDirectory, 0);
+                blob.chunks.write(blob.spool);
+            }
+            staged = true;
+            return blob;
+
+        } finally {
+            if (!staged) {
+                blob.discard();
+            }
+        }
+    }
+
+    /**
+     * Stores a chunk unless it is already there, and retains a reference to it.
+     */
+    private void pinChunk(String sha1, byte[] bytes, int offset, int length) throws IOException {
+        Lock blobLock = blobLocks.get(sha1);
+        BlobSpool spool = null;
+        try {
+            while (true) {
+                // Compress without holding the lock, unless the chunk vanished in the meantime
+                if (spool == null && !blobExists(sha1)) {
+                    spool = compress(bytes, offset, length);
+                }
+                blobLock.lock();
+                try {
+                    if (blobExists(sha1)) {
+                        metrics.count(Counter.DEDUPLICATED_BLOBS, 1L);
+                        blobs.retain(sha1);
+                        return;
+                    }
+                    if (spool != null) {
+                        File blobFile = blobFile(sha1);
+                        if (spool.isInMemory()) {
+                            packs.append(sha1, spool.toByteArray());
+                        } else if (!rename(spool, blobFile)) {
+                            throw new BlobStoreException("Could not rename " + spool.getFile() + " to " + sha1);
+                        }
+                        stored(spool);
+                        blobs.retain(sha1);
+                        return;
+                    }
+                } finally {
+                    blobLock.unlock();
+                }
+            }
+        } finally {
+            if (spool != null && spool.delete()) {
+                metrics.count(Counter.DISCARDED_TEMP_FILES, 1L);
             }
-            throw new BlobStoreException(e);
         }
     }
 
-    private String indexLineFor(String key, String sha1) {
-        return key + INDEX_LINE_SEPARATOR + sha1 + "\n";
+    /**
+     * Renames a spooled blob to its blob file, and times it.
+     */
+    private boolean rename(BlobSpool spool, File blobFile) {
+        long start = System.nanoTime();
+        boolean renamed = ensureDirectory(blobFile.getParentFile()) && spool.getFile().renameTo(blobFile);
+        metrics.time(Timer.RENAME, System.nanoTime() - start);
+        return renamed;
+    }
+
+    private void stored(BlobSpool spool) {
+        metrics.count(Counter.STORED_BLOBS, 1L);
+        metrics.count(Counter.BYTES_WRITTEN, spool.length());
+    }
+
+    private BlobSpool compress(byte[] bytes, int offset, int length) throws IOException {
+        BlobSpool spool = new BlobSpool(workingDirectory, packThreshold);
+        boolean threw = true;
+        try {
+            OutputStream out = codec.newOutputStream(spool);
+            try {
+                out.write(bytes, offset, length);
+            } finally {
+                out.close();
+            }
+            threw = false;
+            return spool;
+        } finally {
+            if (threw) {
+                spool.delete();
+            }
+        }
     }
 
     /**
-     * Access a blob by key.
+     * Releases the chunks of a manifest. Callers must not hold any blob lock.
+     */
+    private void releaseChunks(Manifest manifest) {
+        if (manifest == null) {
+            return;
+        }
+        for (int i = 0; i < manifest.size(); i++) {
+            release(manifest.digest(i));
+        }
+    }
+
+    /**
+     * Drops a reference to a blob. Callers must not hold any blob lock.
+     */
+    private void release(String sha1) {
+        Lock blobLock = blobLocks.get(sha1);
+        Manifest released;
+        blobLock.lock();
+        try {
+            released = releaseBlob(sha1);
+        } finally {
+            blobLock.unlock();
+        }
+        releaseChunks(released);
+    }
+
+    /**
+     * Stores a compressed blob or a manifest unless the blob is already there, and indexes it.
+     * Compressed blobs that fit in the spool memory go to a pack file. Without a spool, this only
+     * indexes blobs that are already stored.
+     * <p/>
+     * The chunks of a manifest are pinned by the caller, and the pins are either handed over to
+     * the stored manifest or released.
      *
-     * @param key the blob key
-     * @return the input stream to extract the blob data, or if there is no blob for the key
-     * @see com.google.common.base.Optional
+     * @return <code>false</code> if there was no spool, and no such blob
      */
-    public Optional<InputStream> get(String key) {
-        if (index.containsKey(key)) {
+    private boolean storeBlobAndIndex(String key, String sha1, BlobSpool spool, Manifest chunks) throws IOException {
+        Lock keyLock = keyLocks.get(key);
+        Lock blobLock = blobLocks.get(sha1);
+        String replacedSha1 = null;
+        Manifest unusedChunks = chunks;
+        keyLock.lock();
+        blobLock.lock();
+        try {
+            File blobFile = (chunks != null) ? manifestFile(sha1) : blobFile(sha1);
+            boolean freshBlob = false;
+            if (!blobExists(sha1)) {
+                if (spool == null) {
+                    return false;
+                }
+                if (chunks == null && spool.isInMemory()) {
+                    packs.append(sha1, spool.toByteArray());
+                } else if (!rename(spool, blobFile)) {
+                    throw new BlobStoreException("Could not rename " + spool.getFile() + " to " + sha1);
+                }
+                stored(spool);
+                freshBlob = true;
+            } else if (spool != null) {
+                metrics.count(Counter.DEDUPLICATED_BLOBS, 1L);
+            }
+            String previousSha1 = index.get(key);
             try {
-                InputStream in = openBlobStream(key);
-                return Optional.of(in);
-            } catch (FileNotFoundException e) {
-                removeInvalidKeyAndRewriteIndex(key);
-                return Optional.absent();
+                index.put(key, sha1);
+            } catch (IOException e) {
+                // Only drop the blob file if we just created it: other keys may point to it.
+                // A manifest that stays around keeps its chunks.
+                if (freshBlob && (blobs.references(sha1) > 0 || !(packs.remove(sha1) || blobFile.delete()))) {
+                    unusedChunks = null;
+                }
+                throw e;
+            }
+            if (freshBlob) {
+                unusedChunks = null;
+            }
+            if (!sha1.equals(previousSha1)) {
+                blobs.retain(sha1);
+                replacedSha1 = previousSha1;
+            }
+            track(sha1);
+        } finally {
+            blobLock.unlock();
+            keyLock.unlock();
+            releaseChunks(unusedChunks);
+        }
+        if (replacedSha1 != null) {
+            // Taken apart, as holding two blob locks at once could deadlock
+            release(replacedSha1);
+        }
+        maybeScheduleEviction();
+        return true;
+    }
+
+    /**
+     * Drops a reference to a blob, and gets rid of the blob once it is no longer referenced.
+     * Callers must hold the blob lock, and release the chunks of the returned manifest once
+     * they have unlocked it.
+     *
+     * @return the manifest of a deleted chunked blob, or <code>null</code>
+     */
+    private Manifest releaseBlob(String sha1) {
+        if (blobs.release(sha1) == 0) {
+            if (deferredBlobRemoval) {
+                unreferencedBlobs.add(sha1);
+                scheduleCollection();
+            } else {
+                return deleteUnreferencedBlob(sha1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes a blob file unless it got referenced again. Callers must hold the blob lock.
+     *
+     * @return the manifest of a deleted chunked blob, or <code>null</code>
+     */
+    private Manifest deleteUnreferencedBlob(String sha1) {
+        if (blobs.references(sha1) > 0) {
+            return null;
+        }
+        metrics.count(Counter.DELETED_BLOBS, 1L);
+        packs.remove(sha1);
+        if (cache != null) {
+            cache.invalidate(sha1);
+        }
+        for (BlobLayout layout : layouts) {
+            File blob = layout.file(workingDirectory, sha1);
+            if (blob.exists()) {
+                if (!blob.delete()) {
+                    throw new BlobStoreException("Could not delete " + blob);
+                }
+            }
+        }
+        File manifestFile = manifestFile(sha1);
+        if (manifestFile.exists()) {
+            Manifest manifest;
+            try {
+                manifest = Manifest.read(manifestFile);
             } catch (IOException e) {
-                removeInvalidKeyAndRewriteIndex(key);
                 throw new BlobStoreException(e);
             }
+            if (!manifestFile.delete()) {
+                throw new BlobStoreException("Could not delete " + manifestFile);
+            }
+            return manifest;
         }
-        return Optional.absent();
+        return null;
     }
 
-    private GZIPInputStream openBlobStream(String key) throws IOException {
-        return new GZIPInputStream(new FileInputStream(new File(workingDirectory, index.get(key))));
+    private File blobFile(String sha1) {
+        return layouts[0].file(workingDirectory, sha1);
     }
 
-    private void removeInvalidKeyAndRewriteIndex(String key) {
-        index.remove(key);
-        rewriteIndex();
+    private File manifestFile(String sha1) {
+        return new File(manifestDirectory, sha1);
     }
 
-    private void rewriteIndex() {
-        if (!indexFile.delete()) {
-            throw new BlobStoreException("Could not delete " + indexFile);
+    private boolean blobExists(String sha1) {
+        if (packs.contains(sha1) || manifestFile(sha1).exists()) {
+            return true;
+        }
+        for (BlobLayout layout : layouts) {
+            if (layout.file(workingDirectory, sha1).exists()) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Tracks the usage of the blobs in the index and of their chunks, when the store has a
+     * capacity. Indexed blobs go first, so that a chunk that a key also points to gets evicted
+     * like any other blob.
+     */
+    private void trackIndexedBlobs() {
+        long now = System.currentTimeMillis();
         try {
-            for (String key : index.keySet()) {
-                append(indexLineFor(key, index.get(key)), indexFile, UTF_8);
+            for (String sha1 : index.asMap().values()) {
+                if (!blobs.tracked(sha1)) {
+                    blobs.track(sha1, storedSize(sha1), lastModified(sha1, now));
+                }
+            }
+            for (String sha1 : new HashSet<String>(index.asMap().values())) {
+                trackChunks(sha1);
             }
         } catch (IOException e) {
-            // This implementation has a vulnerability window for loosing the index!
             throw new BlobStoreException(e);
         }
     }
 
     /**
-     * Remove a blob identified by a key. Does nothing if the key does not correspond
-     * to an indexed blob.
-     *
-     * @param key the blob key.
+     * Records a put of a blob, and starts tracking its usage if it is new. Callers must hold the
+     * blob lock.
      */
-    public void remove(String key) {
-        if (index.containsKey(key)) {
-            String sha1 = index.get(key);
-            index.remove(key);
-            File blob = new File(workingDirectory, sha1);
-            if (blob.exists()) {
-                if (!blob.delete()) {
-                    throw new BlobStoreException("Could not delete " + blob);
+    private void track(String sha1) throws IOException {
+        if (bounded) {
+            long now = System.currentTimeMillis();
+            if (!blobs.touch(sha1, now)) {
+                blobs.track(sha1, storedSize(sha1), now);
+                trackChunks(sha1);
+            }
+        }
+    }
+
+    /**
+     * Starts tracking the chunks of a chunked blob that are not tracked yet, so that chunks
+     * shared by several manifests are counted once.
+     */
+    private void trackChunks(String sha1) throws IOException {
+        File manifestFile = manifestFile(sha1);
+        if (manifestFile.exists()) {
+            Manifest manifest = Manifest.read(manifestFile);
+            for (int i = 0; i < manifest.size(); i++) {
+                String chunk = manifest.digest(i);
+                if (!blobs.tracked(chunk)) {
+                    blobs.trackChunk(chunk, storedSize(chunk));
                 }
             }
-            rewriteIndex();
+        }
+    }
+
+    /**
+     * Records a read of a blob.
+     */
+    private void touch(String sha1) {
+        if (bounded) {
+            blobs.touch(sha1, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Gives the stored size of a blob, which is the size of its manifest for a chunked blob.
+     */
+    private long storedSize(String sha1) {
+        long packed = packs.length(sha1);
+        if (packed >= 0L) {
+            return packed;
+        }
+        File manifestFile = manifestFile(sha1);
+        if (manifestFile.exists()) {
+            return manifestFile.length();
+        }
+        for (BlobLayout layout : layouts) {
+            File blob = layout.file(workingDirectory, sha1);
+            if (blob.exists()) {
+                return blob.length();
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Gives the modification time of a blob file or manifest, or a default time for packed blobs.
+     */
+    private long lastModified(String sha1, long defaultTime) {
+        File manifestFile = manifestFile(sha1);
+        if (manifestFile.exists()) {
+            return manifestFile.lastModified();
+        }
+        for (BlobLayout layout : layouts) {
+            File blob = layout.file(workingDirectory, sha1);
+            if (blob.exists()) {
+                return blob.lastModified();
+            }
+        }
+        return defaultTime;
+    }
+
+    /**
+     * Creates a directory if needed, and tolerates concurrent creations.
+     *
+     * @return <code>true</code> unless the directory could not be created
+     */
+    private static boolean ensureDirectory(File directory) {
+        return directory.isDirectory() || directory.mkdirs() || directory.isDirectory();
+    }
+
+    private void scheduleCollection() {
+        if (collectionScheduled.compareAndSet(false, true)) {
+            collector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    collectionScheduled.set(false);
+                    collectUnreferencedBlobs();
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the blobs that lost their last reference, when blob removal is deferred.
+     * This otherwise happens in the background.
+     *
+     * @see blob.store.BlobStoreOptions#deferredBlobRemoval(boolean)
+     */
+    public void collectUnreferencedBlobs() {
+        String sha1;
+        while ((sha1 = unreferencedBlobs.poll()) != null) {
+            Lock blobLock = blobLocks.get(sha1);
+            Manifest released = null;
+            blobLock.lock();
+            try {
+                released = deleteUnreferencedBlob(sha1);
+            } catch (BlobStoreException ignored) {
+                // The blob file is left behind as garbage
+            } finally {
+                blobLock.unlock();
+            }
+            releaseChunks(released);
+        }
+    }
+
+    private boolean overCapacity() {
+        return (capacityBytes > 0L && blobs.trackedBytes() > capacityBytes)
+                || (capacityKeys > 0L && index.asMap().size() > capacityKeys);
+    }
+
+    private void maybeScheduleEviction() {
+        if (bounded && overCapacity() && evictionScheduled.compareAndSet(false, true)) {
+            evictor.execute(new EvictionTask());
+        }
+    }
+
+    private final class EvictionTask implements Runnable {
+
+        @Override
+        public void run() {
+            evictionScheduled.set(false);
+            try {
+                evict();
+            } catch (BlobStoreException ignored) {
+                // The next put schedules another attempt
+            }
+        }
+    }
+
+    /**
+     * Evicts blobs, and every key pointing to them, once the store is over its capacity. Blobs
+     * are picked by the eviction policy until the store is back to nine tenths of its capacity.
+     * This otherwise happens in the background after puts.
+     * <p/>
+     * Blobs are picked from rounds of a bounded number of candidates, each taking a pass over the
+     * blob table. Finding the keys of the evicted blobs then takes a pass over the index, which is
+     * shared by all the blobs evicted at once.
+     *
+     * @return the number of evicted keys
+     * @see blob.store.BlobStoreOptions#capacityBytes(long)
+     * @see blob.store.BlobStoreOptions#capacityKeys(long)
+     */
+    public int evict() {
+        if (!bounded) {
+            return 0;
+        }
+        synchronized (evictionLock) {
+            if (!overCapacity()) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            Set<String> victims = pickVictims();
+            List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+            for (Map.Entry<String, String> entry : index.asMap().entrySet()) {
+                if (victims.contains(entry.getValue())) {
+                    entries.add(entry);
+                }
+            }
+            int evicted = 0;
+            for (Map.Entry<String, String> entry : entries) {
+                if (evictKey(entry.getKey(), entry.getValue())) {
+                    evicted = evicted + 1;
+                }
+            }
+            metrics.count(Counter.EVICTED_KEYS, evicted);
+            metrics.time(Timer.EVICTION, System.nanoTime() - start);
+            return evicted;
+        }
+    }
+
+    private Set<String> pickVictims() {
+        long bytes = blobs.trackedBytes();
+        long keys = index.asMap().size();
+        long targetBytes = (long) (capacityBytes * EVICTION_TARGET);
+        long targetKeys = (long) (capacityKeys * EVICTION_TARGET);
+        long now = System.currentTimeMillis();
+        Set<String> victims = new HashSet<String>();
+        Map<String, Integer> chunkReleases = new HashMap<String, Integer>();
+        // Each round takes a pass over the blob table, and skips the victims of the previous rounds
+        while (true) {
+            int count = victims.size() + EVICTION_CANDIDATES;
+            List<BlobTable.Candidate> candidates = blobs.evictionCandidates(evictionPolicy, now, count);
+            for (BlobTable.Candidate candidate : candidates) {
+                if ((capacityBytes == 0L || bytes <= targetBytes) && (capacityKeys == 0L || keys <= targetKeys)) {
+                    return victims;
+                }
+                if (victims.add(candidate.sha1)) {
+                    bytes = bytes - candidate.size - releasedChunkBytes(candidate.sha1, chunkReleases);
+                    keys = keys - candidate.references;
+                }
+            }
+            if (candidates.size() < count) {
+                return victims;
+            }
+        }
+    }
+
+    /**
+     * Gives the stored size of the chunks that evicting a chunked blob frees, which are the ones
+     * whose last references go away with the blobs already picked for eviction.
+     */
+    private long releasedChunkBytes(String sha1, Map<String, Integer> chunkReleases) {
+        File manifestFile = manifestFile(sha1);
+        if (!manifestFile.exists()) {
+            return 0L;
+        }
+        Manifest manifest;
+        try {
+            manifest = Manifest.read(manifestFile);
+        } catch (FileNotFoundException e) {
+            return 0L;
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+        long bytes = 0L;
+        for (int i = 0; i < manifest.size(); i++) {
+            String chunk = manifest.digest(i);
+            Integer previous = chunkReleases.get(chunk);
+            int releases = (previous == null) ? 1 : previous + 1;
+            chunkReleases.put(chunk, releases);
+            if (releases == blobs.references(chunk)) {
+                bytes = bytes + Math.max(0L, blobs.trackedSize(chunk));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes a key unless it got updated since it was picked for eviction.
+     */
+    private boolean evictKey(String key, String sha1) {
+        Lock keyLock = keyLocks.get(key);
+        Lock blobLock = blobLocks.get(sha1);
+        Manifest released = null;
+        boolean evicted = false;
+        keyLock.lock();
+        blobLock.lock();
+        try {
+            if (index.remove(key, sha1)) {
+                released = releaseBlob(sha1);
+                evicted = true;
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        } finally {
+            blobLock.unlock();
+            keyLock.unlock();
+        }
+        releaseChunks(released);
+        return evicted;
+    }
+
+    /**
+     * Access a blob by key.
+     *
+     * @param key the blob key
+     * @return the input stream to extract the blob data, or if there is no blob for the key
+     * @see com.google.common.base.Optional
+     */
+    public Optional<InputStream> get(String key) {
+        long start = System.nanoTime();
+        try {
+            return getBlob(key);
+        } finally {
+            metrics.time(Timer.GET, System.nanoTime() - start);
+        }
+    }
+
+    private Optional<InputStream> getBlob(String key) {
+        String sha1 = index.get(key);
+        if (sha1 != null) {
+            touch(sha1);
+            try {
+                InputStream in = (cache != null) ? cache.get(sha1) : null;
+                if (in == null) {
+                    in = openBlobStream(sha1, 0L, Long.MAX_VALUE);
+                    if (cache != null) {
+                        in = cache.fill(sha1, in);
+                    }
+                }
+                return Optional.of(in);
+            } catch (FileNotFoundException e) {
+                removeInvalidKey(key, sha1);
+                return Optional.absent();
+            } catch (IOException e) {
+                removeInvalidKey(key, sha1);
+                throw new BlobStoreException(e);
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Access a range of a blob by key. The range gets truncated to the end of the blob.
+     * <p/>
+     * Only the blocks and chunks that overlap the range are decompressed for blobs written with
+     * a block codec or with chunking, while GZIP blobs get decompressed from their start.
+     *
+     * @param key    the blob key
+     * @param offset the offset of the range in the blob data
+     * @param length the length of the range
+     * @return the input stream to extract the range data, or if there is no blob for the key
+     * @see blob.store.Codec#lz4()
+     * @see blob.store.Codec#blockDeflate(int)
+     */
+    public Optional<InputStream> get(String key, long offset, long length) {
+        long start = System.nanoTime();
+        try {
+            return getBlob(key, offset, length);
+        } finally {
+            metrics.time(Timer.GET, System.nanoTime() - start);
+        }
+    }
+
+    private Optional<InputStream> getBlob(String key, long offset, long length) {
+        checkArgument(offset >= 0L, "The offset cannot be negative");
+        checkArgument(length >= 0L, "The length cannot be negative");
+        String sha1 = index.get(key);
+        if (sha1 != null) {
+            touch(sha1);
+            try {
+                InputStream in = (cache != null) ? cache.get(sha1) : null;
+                if (in != null) {
+                    skip(in, offset);
+                } else {
+                    in = openBlobStream(sha1, offset, length);
+                }
+                return Optional.<InputStream>of(new LimitInputStream(in, length));
+            } catch (FileNotFoundException e) {
+                removeInvalidKey(key, sha1);
+                return Optional.absent();
+            } catch (IOException e) {
+                removeInvalidKey(key, sha1);
+                throw new BlobStoreException(e);
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Sends a blob by key to a channel, for instance a socket channel. Blob files are sent as-is
+     * when they are uncompressed, or when they are single member GZIP files and the caller accepts
+     * GZIP data. They then go through <code>FileChannel.transferTo</code>, which spares copying the
+     * data in user space. Other blobs get decompressed and sent as plain data, including the GZIP
+     * blobs compressed in parallel, as many HTTP clients only read the first member of GZIP data.
+     * <p/>
+     * The channel should be in blocking mode, and it is left open.
+     *
+     * @param key          the blob key
+     * @param target       the channel to send the blob data to
+     * @param gzipAccepted whether GZIP data may be sent
+     * @return the encoding of the sent data, or absent if there is no blob for the key
+     * @see blob.store.ContentEncoding
+     */
+    public Optional<ContentEncoding> transferTo(String key, WritableByteChannel target, boolean gzipAccepted) {
+        long start = System.nanoTime();
+        try {
+            return transferBlob(key, target, gzipAccepted);
+        } finally {
+            metrics.time(Timer.GET, System.nanoTime() - start);
+        }
+    }
+
+    private Optional<ContentEncoding> transferBlob(String key, WritableByteChannel target, boolean gzipAccepted) {
+        String sha1 = index.get(key);
+        if (sha1 == null) {
+            return Optional.absent();
+        }
+        touch(sha1);
+        try {
+            if (!manifestFile(sha1).exists() && !packs.contains(sha1)) {
+                FileInputStream in = openBlobFile(sha1);
+                try {
+                    FileChannel channel = in.getChannel();
+                    ByteBuffer header = ByteBuffer.allocate(Codec.HEADER_LENGTH);
+                    int count;
+                    do {
+                        count = channel.read(header, header.position());
+                    } while (count >= 0 && header.hasRemaining());
+                    ContentEncoding encoding = Codec.rawEncoding(header.array(), header.position());
+                    if (encoding == ContentEncoding.GZIP && gzipAccepted) {
+                        transferFile(channel, 0L, target);
+                        return Optional.of(encoding);
+                    }
+                    if (encoding == ContentEncoding.IDENTITY) {
+                        transferFile(channel, Codec.HEADER_LENGTH, target);
+                        return Optional.of(encoding);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (FileNotFoundException e) {
+            removeInvalidKey(key, sha1);
+            return Optional.absent();
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+        Optional<InputStream> in = getBlob(key);
+        if (!in.isPresent()) {
+            return Optional.absent();
+        }
+        try {
+            try {
+                ByteStreams.copy(Channels.newChannel(in.get()), target);
+            } finally {
+                in.get().close();
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+        return Optional.of(ContentEncoding.IDENTITY);
+    }
+
+    /**
+     * Sends a blob by key to a channel as plain data.
+     *
+     * @param key    the blob key
+     * @param target the channel to send the blob data to
+     * @return <code>true</code> if there was a blob for the key
+     * @see #transferTo(String, java.nio.channels.WritableByteChannel, boolean)
+     */
+    public boolean transferTo(String key, WritableByteChannel target) {
+        return transferTo(key, target, false).isPresent();
+    }
+
+    private static void transferFile(FileChannel channel, long position, WritableByteChannel target) throws IOException {
+        long size = channel.size();
+        while (position < size) {
+            position = position + channel.transferTo(position, size - position, target);
+        }
+    }
+
+    /**
+     * Opens a blob at an offset. Chunks past the given length may be left out.
+     */
+    private InputStream openBlobStream(String sha1, long offset, long length) throws IOException {
+        File manifestFile = manifestFile(sha1);
+        if (manifestFile.exists()) {
+            Manifest manifest = Manifest.read(manifestFile);
+            List<ChunkSupplier> chunks = new ArrayList<ChunkSupplier>(manifest.size());
+            long start = 0L;
+            for (int i = 0; i < manifest.size() && start - offset < length; i++) {
+                long end = start + manifest.length(i);
+                if (end > offset) {
+                    chunks.add(new ChunkSupplier(manifest.digest(i), Math.max(0L, offset - start)));
+                }
+                start = end;
+            }
+            return ByteStreams.join(chunks).getInput();
+        }
+        InputStream packed = packs.open(sha1);
+        InputStream in = Codec.newInputStream((packed != null) ? packed : openBlobFile(sha1));
+        if (offset > 0L) {
+            try {
+                skip(in, offset);
+            } catch (IOException e) {
+                Closeables.closeQuietly(in);
+                throw e;
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Skips bytes, and stops at the end of the stream.
+     */
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0L) {
+            long skipped = in.skip(count);
+            if (skipped <= 0L) {
+                if (in.read() < 0) {
+                    return;
+                }
+                skipped = 1L;
+            }
+            count = count - skipped;
+        }
+    }
+
+    private FileInputStream openBlobFile(String sha1) throws FileNotFoundException {
+        BlobLayout[] current = layouts;
+        if (current.length > 1) {
+            // Blobs only ever move to the first layout, so a blob that is missing from every
+            // layout may just have moved to the first one
+            for (BlobLayout layout : current) {
+                try {
+                    return new FileInputStream(layout.file(workingDirectory, sha1));
+                } catch (FileNotFoundException ignored) {
+                    // Try the next layout
+                }
+            }
+        }
+        return new FileInputStream(current[0].file(workingDirectory, sha1));
+    }
+
+    /**
+     * A compressed blob or a manifest waiting to be stored, along with the pins on its chunks.
+     */
+    private final class StagedBlob {
+
+        String sha1;
+        long length;
+        BlobSpool spool;
+        Manifest chunks;
+
+        /**
+         * Hands the chunk pins over, once the manifest is about to be stored.
+         */
+        Manifest takeChunks() {
+            Manifest taken = chunks;
+            chunks = null;
+            return taken;
+        }
+
+        void discard() {
+            if (spool != null && spool.delete()) {
+                metrics.count(Counter.DISCARDED_TEMP_FILES, 1L);
+            }
+            releaseChunks(takeChunks());
+        }
+    }
+
+    private final class SegmentTask implements Callable<byte[]> {
+
+        private final byte[] segment;
+        private final int length;
+        private final boolean last;
+
+        SegmentTask(byte[] segment, int length, boolean last) {
+            this.segment = segment;
+            this.length = length;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            return codec.compressSegment(segment, 0, length, false, last);
+        }
+    }
+
+    private final class StageTask implements Callable<StagedBlob> {
+
+        private final InputSupplier<? extends InputStream> supplier;
+
+        StageTask(InputSupplier<? extends InputStream> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public StagedBlob call() throws IOException {
+            return stage(supplier);
+        }
+    }
+
+    /**
+     * Opens a chunk of a chunked blob, only when a stitched stream gets to it.
+     */
+    private final class ChunkSupplier implements InputSupplier<InputStream> {
+
+        private final String sha1;
+        private final long offset;
+
+        ChunkSupplier(String sha1, long offset) {
+            this.sha1 = sha1;
+            this.offset = offset;
+        }
+
+        @Override
+        public InputStream getInput() throws IOException {
+            return openBlobStream(sha1, offset, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Removes the key of a missing or corrupt blob, and drops its reference like a removal does.
+     */
+    private void removeInvalidKey(String key, String sha1) {
+        Lock keyLock = keyLocks.get(key);
+        Lock blobLock = blobLocks.get(sha1);
+        Manifest released = null;
+        keyLock.lock();
+        blobLock.lock();
+        try {
+            // The key may have been re-put with a valid blob in the meantime
+            if (index.remove(key, sha1)) {
+                released = releaseBlob(sha1);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        } finally {
+            blobLock.unlock();
+            keyLock.unlock();
+        }
+        releaseChunks(released);
+    }
+
+    /**
+     * Remove a blob identified by a key. Does nothing if the key does not correspond
+     * to an indexed blob.
+     * <p/>
+     * The blob itself is only deleted once no key points to it anymore, either right away
+     * or in the background if blob removal is deferred.
+     *
+     * @param key the blob key.
+     * @see blob.store.BlobStoreOptions#deferredBlobRemoval(boolean)
+     */
+    public void remove(String key) {
+        long start = System.nanoTime();
+        try {
+            removeBlob(key);
+        } finally {
+            metrics.time(Timer.REMOVE, System.nanoTime() - start);
+        }
+    }
+
+    private void removeBlob(String key) {
+        Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            String sha1 = index.get(key);
+            if (sha1 == null) {
+                return;
+            }
+            Lock blobLock = blobLocks.get(sha1);
+            Manifest released = null;
+            blobLock.lock();
+            try {
+                if (index.remove(key, sha1)) {
+                    released = releaseBlob(sha1);
+                }
+            } finally {
+                blobLock.unlock();
+            }
+            releaseChunks(released);
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a batch of puts and removals, whose blobs are compressed in the calling thread.
+     *
+     * @return the batch
+     * @see #batch(java.util.concurrent.Executor)
+     */
+    public Batch batch() {
+        return new Batch(this, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Starts a batch of puts and removals, whose blobs are compressed in parallel by an executor.
+     *
+     * @param executor the executor to compress blobs with
+     * @return the batch
+     * @see blob.store.Batch
+     */
+    public Batch batch(Executor executor) {
+        return new Batch(this, executor);
+    }
+
+    /**
+     * Commits the changes of a batch: blobs are first compressed outside of any lock, then the
+     * index entries are all written at once while holding the locks of the batch keys.
+     *
+     * @param changes  the data supplier of each key to put, or <code>null</code> for the keys to remove
+     * @param executor the executor to compress blobs with
+     */
+    void commit(Map<String, InputSupplier<? extends InputStream>> changes, Executor executor) {
+        long start = System.nanoTime();
+        try {
+            commitChanges(changes, executor);
+        } finally {
+            metrics.time(Timer.BATCH, System.nanoTime() - start);
+        }
+    }
+
+    private void commitChanges(Map<String, InputSupplier<? extends InputStream>> changes, Executor executor) {
+        for (String key : changes.keySet()) {
+            index.checkKey(key);
+        }
+        Map<String, StagedBlob> staged = stageAll(changes, executor);
+        List<String> pinned = new ArrayList<String>();
+        List<String> replaced = new ArrayList<String>();
+        boolean committed = false;
+        List<Lock> locks = keyLocks.getAll(changes.keySet());
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            Map<String, String> updates = new LinkedHashMap<String, String>();
+            for (String key : changes.keySet()) {
+                StagedBlob blob = staged.get(key);
+                String previousSha1 = index.get(key);
+                if (blob == null) {
+                    if (previousSha1 != null) {
+                        updates.put(key, null);
+                        replaced.add(previousSha1);
+                    }
+                    continue;
+                }
+                pinStagedBlob(blob);
+                pinned.add(blob.sha1);
+                if (blob.sha1.equals(previousSha1)) {
+                    // The key already holds a reference
+                    replaced.add(blob.sha1);
+                } else {
+                    updates.put(key, blob.sha1);
+                    if (previousSha1 != null) {
+                        replaced.add(previousSha1);
+                    }
+                }
+            }
+            index.update(updates);
+            committed = true;
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            for (String sha1 : committed ? replaced : pinned) {
+                release(sha1);
+            }
+            for (StagedBlob blob : staged.values()) {
+                blob.discard();
+            }
+        }
+        maybeScheduleEviction();
+    }
+
+    private Map<String, StagedBlob> stageAll(Map<String, InputSupplier<? extends InputStream>> changes, Executor executor) {
+        Map<String, FutureTask<StagedBlob>> tasks = new LinkedHashMap<String, FutureTask<StagedBlob>>();
+        for (Map.Entry<String, InputSupplier<? extends InputStream>> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                FutureTask<StagedBlob> task = new FutureTask<StagedBlob>(new StageTask(change.getValue()));
+                tasks.put(change.getKey(), task);
+                executor.execute(task);
+            }
+        }
+        Map<String, StagedBlob> staged = new HashMap<String, StagedBlob>();
+        Throwable failure = null;
+        for (Map.Entry<String, FutureTask<StagedBlob>> task : tasks.entrySet()) {
+            try {
+                staged.put(task.getKey(), Uninterruptibles.getUninterruptibly(task.getValue()));
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+        }
+        if (failure != null) {
+            for (StagedBlob blob : staged.values()) {
+                blob.discard();
+            }
+            if (failure instanceof BlobStoreException) {
+                throw (BlobStoreException) failure;
+            }
+            throw new BlobStoreException(failure);
+        }
+        return staged;
+    }
+
+    /**
+     * Stores a staged blob unless it is already there, and retains a reference to it.
+     */
+    private void pinStagedBlob(StagedBlob blob) throws IOException {
+        Lock blobLock = blobLocks.get(blob.sha1);
+        blobLock.lock();
+        try {
+            if (!blobExists(blob.sha1)) {
+                File blobFile = (blob.chunks != null) ? manifestFile(blob.sha1) : blobFile(blob.sha1);
+                if (blob.chunks == null && blob.spool.isInMemory()) {
+                    packs.append(blob.sha1, blob.spool.toByteArray());
+                } else if (!rename(blob.spool, blobFile)) {
+                    throw new BlobStoreException("Could not rename " + blob.spool.getFile() + " to " + blob.sha1);
+                }
+                stored(blob.spool);
+                blob.takeChunks();
+            } else {
+                metrics.count(Counter.DEDUPLICATED_BLOBS, 1L);
+            }
+            blobs.retain(blob.sha1);
+            track(blob.sha1);
+        } finally {
+            blobLock.unlock();
+        }
+    }
+
+    /**
+     * Compacts the index down to its live entries. Compaction otherwise happens in the
+     * background, depending on the ratio of dead to live index entries.
+     *
+     * @see blob.store.BlobStoreOptions#compactionRatio(double)
+     */
+    public void compactIndex() {
+        index.compact();
+    }
+
+    /**
+     * Repacks the pack file segments whose blobs are mostly no longer referenced, by copying the
+     * blobs that are still referenced to the current segment. This otherwise never happens, as
+     * deleting a packed blob only turns its data into garbage.
+     *
+     * @return the number of repacked segments
+     * @see blob.store.BlobStoreOptions#packThreshold(int)
+     */
+    public int repack() {
+        try {
+            return packs.repack();
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    /**
+     * Gives the read cache statistics, which are all zeroes when the cache is disabled.
+     *
+     * @return the cache statistics
+     * @see blob.store.BlobStoreOptions#cacheSize(long)
+     */
+    public CacheStats getCacheStats() {
+        return (cache != null) ? cache.stats() : new CacheStats(0L, 0L, 0L, 0L, 0L, 0L);
+    }
+
+    /**
+     * Moves the blob files to the layout set in the store options. Blob files are moved one at a
+     * time while the store keeps serving requests, so this may run in a thread of its own. New
+     * blob files go to the new layout right away.
+     *
+     * @see blob.store.BlobStoreOptions#fanOut(int)
+     */
+    public void migrateLayout() {
+        synchronized (migrationLock) {
+            BlobLayout[] current = layouts;
+            if (current.length == 1) {
+                return;
+            }
+            try {
+                for (int i = 1; i < current.length; i++) {
+                    Iterator<String> digests = current[i].digests(workingDirectory);
+                    while (digests.hasNext()) {
+                        moveBlobFile(digests.next(), current[i], current[0]);
+                    }
+                }
+                BlobLayout.write(workingDirectory, new BlobLayout[]{current[0]});
+            } catch (IOException e) {
+                throw new BlobStoreException(e);
+            }
+            layouts = new BlobLayout[]{current[0]};
+        }
+    }
+
+    private void moveBlobFile(String sha1, BlobLayout from, BlobLayout to) {
+        Lock blobLock = blobLocks.get(sha1);
+        blobLock.lock();
+        try {
+            File source = from.file(workingDirectory, sha1);
+            File target = to.file(workingDirectory, sha1);
+            if (!source.exists()) {
+                return;
+            }
+            if (target.exists()) {
+                // Both files hold the same data
+                source.delete();
+            } else if (!ensureDirectory(target.getParentFile()) || !source.renameTo(target)) {
+                throw new BlobStoreException("Could not move " + source + " to " + target);
+            }
+        } finally {
+            blobLock.unlock();
+        }
+    }
+
+    /**
+     * Checks the stored blobs while the store keeps serving requests.
+     * <p/>
+     * Each blob file, chunk, manifest and packed blob gets decompressed and hashed against its
+     * SHA1 by a pool of threads, whose reads can be throttled so that they leave the disks to
+     * live requests. The keys are then checked for blobs that are not stored, and the stored
+     * blobs for references from keys or manifests.
+     * <p/>
+     * Repairs remove the keys of corrupt and missing blobs, just like <code>get</code> does when
+     * it stumbles on them, then delete the corrupt and unreferenced blobs.
+     *
+     * @param threads        the number of threads that hash blobs
+     * @param bytesPerSecond the maximum number of decompressed bytes hashed per second by all threads, or <code>0</code> for no limit
+     * @param repair         whether to repair what is wrong, or only report it
+     * @return the scrub report
+     * @see blob.store.ScrubReport
+     */
+    public ScrubReport scrub(int threads, long bytesPerSecond, boolean repair) {
+        checkArgument(threads > 0, "There must be at least one scrub thread");
+        checkArgument(bytesPerSecond >= 0L, "The rate cannot be negative");
+        Set<String> stored = new LinkedHashSet<String>();
+        for (BlobLayout layout : layouts) {
+            Iterators.addAll(stored, layout.digests(workingDirectory));
+        }
+        String[] manifests = manifestDirectory.list();
+        if (manifests != null) {
+            for (String name : manifests) {
+                if (Sha1.isValid(name)) {
+                    stored.add(name);
+                }
+            }
+        }
+        stored.addAll(packs.digests());
+
+        ScrubTask task = new ScrubTask(stored.iterator(), new Throttle(bytesPerSecond));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("blobstore-scrub-%d")
+                .build());
+        try {
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(task));
+            }
+            for (Future<Void> worker : workers) {
+                Uninterruptibles.getUninterruptibly(worker);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BlobStoreException) {
+                throw (BlobStoreException) e.getCause();
+            }
+            throw new BlobStoreException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Blobs stored after the listing are not in the set, but they are on the disk
+        SortedSet<String> missing = new TreeSet<String>();
+        Map<String, String> invalidKeys = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : index.asMap().entrySet()) {
+            String sha1 = entry.getValue();
+            if (task.corrupt.contains(sha1)) {
+                invalidKeys.put(entry.getKey(), sha1);
+            } else if (!stored.contains(sha1) && !blobExists(sha1) && sha1.equals(index.get(entry.getKey()))) {
+                missing.add(sha1);
+                invalidKeys.put(entry.getKey(), sha1);
+            }
+        }
+
+        if (repair) {
+            for (Map.Entry<String, String> entry : invalidKeys.entrySet()) {
+                removeInvalidKey(entry.getKey(), entry.getValue());
+            }
+            Set<String> deletable = new TreeSet<String>(task.corrupt);
+            deletable.addAll(task.unreferenced);
+            for (String sha1 : deletable) {
+                Lock blobLock = blobLocks.get(sha1);
+                Manifest released;
+                blobLock.lock();
+                try {
+                    released = deleteUnreferencedBlob(sha1);
+                } finally {
+                    blobLock.unlock();
+                }
+                releaseChunks(released);
+            }
+        }
+        return new ScrubReport(task.checkedBlobs.get(), task.checkedBytes.get(), new TreeSet<String>(task.corrupt),
+                missing, new TreeSet<String>(task.unreferenced), repair);
+    }
+
+    /**
+     * Hashes blobs taken from a shared iterator, and can be run by several threads at once.
+     */
+    private final class ScrubTask implements Callable<Void> {
+
+        private final Iterator<String> digests;
+        private final Throttle throttle;
+        final AtomicLong checkedBlobs = new AtomicLong();
+        final AtomicLong checkedBytes = new AtomicLong();
+        final Set<String> corrupt = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> unreferenced = Collections.synchronizedSet(new HashSet<String>());
+
+        ScrubTask(Iterator<String> digests, Throttle throttle) {
+            this.digests = digests;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public Void call() {
+            while (true) {
+                String sha1;
+                synchronized (digests) {
+                    if (!digests.hasNext()) {
+                        return null;
+                    }
+                    sha1 = digests.next();
+                }
+                check(sha1);
+            }
+        }
+
+        private void check(String sha1) {
+            Lock blobLock = blobLocks.get(sha1);
+            blobLock.lock();
+            try {
+                // Blobs get stored and referenced while holding their lock
+                if (!blobExists(sha1)) {
+                    return;
+                }
+                if (blobs.references(sha1) == 0) {
+                    unreferenced.add(sha1);
+                    return;
+                }
+            } finally {
+                blobLock.unlock();
+            }
+            InputStream in = null;
+            try {
+                in = openBlobStream(sha1, 0L, Long.MAX_VALUE);
+                Hasher hasher = sha1().newHasher();
+                byte[] buffer = new byte[8 * HASH_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    throttle.acquire(read);
+                    hasher.putBytes(buffer, 0, read);
+                    checkedBytes.addAndGet(read);
+                }
+                checkedBlobs.incrementAndGet();
+                if (!sha1.equals(hasher.hash().toString())) {
+                    corrupt.add(sha1);
+                }
+            } catch (FileNotFoundException e) {
+                // Either the blob got removed in the meantime, or one of its chunks is missing
+                if (blobExists(sha1)) {
+                    corrupt.add(sha1);
+                }
+            } catch (IOException e) {
+                corrupt.add(sha1);
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Closes the index log. Pending index entries have been committed by the time
+     * <code>put</code> and <code>remove</code> return, so this only releases resources.
+     */
+    @Override
+    public void close() {
+        if (compressors != null) {
+            compressors.shutdown();
+        }
+        if (evictor != null) {
+            evictor.shutdown();
+            try {
+                evictor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (collector != null) {
+            collector.shutdown();
+            try {
+                collector.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            index.close();
+            packs.close();
+        } catch (IOException e) {
+            throw new BlobStoreException(e);
         }
     }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tuning options for a blob store.
+ * <p/>
+ * Options are read when a blob store is constructed: changing them afterwards has no
+ * effect on existing instances.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore
+ */
+public class BlobStoreOptions {
+
+    private Durability durability = Durability.NONE;
+    private IndexFormat indexFormat = IndexFormat.TEXT;
+    private double compactionRatio = 0.5;
+    private long compactionMinDeadRecords = 1024L;
+    private boolean hashFirst = false;
+    private int hashFirstSpoolSize = 64 * 1024;
+    private boolean deferredBlobRemoval = false;
+    private Codec codec = Codec.gzip();
+    private boolean chunking = false;
+    private int averageChunkSize = 64 * 1024;
+    private int packThreshold = 0;
+    private long packSegmentSize = 64L * 1024L * 1024L;
+    private int fanOut = -1;
+    private long cacheSize = 0L;
+    private int compressionThreads = 1;
+    private long capacityBytes = 0L;
+    private long capacityKeys = 0L;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private Metrics metrics = Metrics.none();
+
+    /**
+     * Sets the index log durability, defaults to <code>Durability.NONE</code>.
+     *
+     * @param durability the durability level
+     * @return this options object
+     * @see blob.store.Durability
+     */
+    public BlobStoreOptions durability(Durability durability) {
+        this.durability = checkNotNull(durability);
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets the index format, defaults to <code>IndexFormat.TEXT</code>.
+     *
+     * @param indexFormat the index format
+     * @return this options object
+     * @see blob.store.IndexFormat
+     */
+    public BlobStoreOptions indexFormat(IndexFormat indexFormat) {
+        this.indexFormat = checkNotNull(indexFormat);
+        return this;
+    }
+
+    public IndexFormat getIndexFormat() {
+        return indexFormat;
+    }
+
+    /**
+     * Sets the ratio of dead to live index entries that triggers a background index compaction,
+     * defaults to <code>0.5</code>.
+     *
+     * @param compactionRatio the dead to live entries ratio
+     * @return this options object
+     */
+    public BlobStoreOptions compactionRatio(double compactionRatio) {
+        checkArgument(compactionRatio >= 0.0, "The compaction ratio cannot be negative");
+        this.compactionRatio = compactionRatio;
+        return this;
+    }
+
+    public double getCompactionRatio() {
+        return compactionRatio;
+    }
+
+    /**
+     * Sets the minimum number of dead index entries before a background index compaction
+     * is considered, defaults to <code>1024</code>.
+     *
+     * @param compactionMinDeadRecords the minimum number of dead entries
+     * @return this options object
+     */
+    public BlobStoreOptions compactionMinDeadRecords(long compactionMinDeadRecords) {
+        checkArgument(compactionMinDeadRecords >= 0L, "The minimum number of dead records cannot be negative");
+        this.compactionMinDeadRecords = compactionMinDeadRecords;
+        return this;
+    }
+
+    public long getCompactionMinDeadRecords() {
+        return compactionMinDeadRecords;
+    }
+
+    /**
+     * Sets whether puts hash their data before compressing it, defaults to <code>false</code>.
+     * <p/>
+     * By default, data is compressed while it is being hashed, and the compressed output is thrown
+     * away when the blob turns out to be a duplicate. Hashing first saves compression work for
+     * duplicate-heavy workloads, at the cost of reading new content twice when it does not fit
+     * in the spool.
+     *
+     * @param hashFirst <code>true</code> to only compress new content
+     * @return this options object
+     * @see #hashFirstSpoolSize(int)
+     */
+    public BlobStoreOptions hashFirst(boolean hashFirst) {
+        this.hashFirst = hashFirst;
+        return this;
+    }
+
+    public boolean isHashFirst() {
+        return hashFirst;
+    }
+
+    /**
+     * Sets the size of the in-memory buffer where hash-first puts keep small inputs, so that they
+     * can be compressed without reading them again, defaults to 64KB.
+     *
+     * @param hashFirstSpoolSize the spool size in bytes
+     * @return this options object
+     * @see #hashFirst(boolean)
+     */
+    public BlobStoreOptions hashFirstSpoolSize(int hashFirstSpoolSize) {
+        checkArgument(hashFirstSpoolSize >= 0, "The spool size cannot be negative");
+        this.hashFirstSpoolSize = hashFirstSpoolSize;
+        return this;
+    }
+
+    public int getHashFirstSpoolSize() {
+        return hashFirstSpoolSize;
+    }
+
+    /**
+     * Sets whether blobs that lost their last reference are deleted in the background rather than
+     * by the thread removing or overwriting the last key, defaults to <code>false</code>.
+     *
+     * @param deferredBlobRemoval <code>true</code> to delete unreferenced blobs in the background
+     * @return this options object
+     */
+    public BlobStoreOptions deferredBlobRemoval(boolean deferredBlobRemoval) {
+        this.deferredBlobRemoval = deferredBlobRemoval;
+        return this;
+    }
+
+    public boolean isDeferredBlobRemoval() {
+        return deferredBlobRemoval;
+    }
+
+    /**
+     * Sets the codec for newly written blobs, defaults to <code>Codec.gzip()</code>.
+     * <p/>
+     * Existing blobs stay readable whatever codec they were written with.
+     *
+     * @param codec the blob codec
+     * @return this options object
+     * @see blob.store.Codec
+     */
+    public BlobStoreOptions codec(Codec codec) {
+        this.codec = checkNotNull(codec);
+        return this;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets whether blobs are split into content-defined chunks that are stored and deduplicated
+     * on their own, defaults to <code>false</code>.
+     * <p/>
+     * Chunking pays off when large blobs are stored again with small edits, since only the chunks
+     * around the edits are new. Blobs that fit in a single chunk are stored as usual. Chunked blobs
+     * stay readable when a store is opened without chunking.
+     *
+     * @param chunking <code>true</code> to split blobs into chunks
+     * @return this options object
+     * @see #averageChunkSize(int)
+     */
+    public BlobStoreOptions chunking(boolean chunking) {
+        this.chunking = chunking;
+        return this;
+    }
+
+    public boolean isChunking() {
+        return chunking;
+    }
+
+    /**
+     * Sets the average chunk size when chunking, defaults to 64KB. Chunks are between a quarter
+     * and four times this size.
+     * <p/>
+     * Blobs only share the chunks that were cut with the same average size.
+     *
+     * @param averageChunkSize the average chunk size in bytes, a power of two between 1KB and 16MB
+     * @return this options object
+     * @see #chunking(boolean)
+     */
+    public BlobStoreOptions averageChunkSize(int averageChunkSize) {
+        checkArgument(Chunker.isValidAverageSize(averageChunkSize),
+                "The average chunk size must be a power of two between 1KB and 16MB");
+        this.averageChunkSize = averageChunkSize;
+        return this;
+    }
+
+    public int getAverageChunkSize() {
+        return averageChunkSize;
+    }
+
+    /**
+     * Sets the size under which compressed blobs are appended to pack files instead of getting a
+     * file of their own, defaults to <code>0</code> which disables packing.
+     * <p/>
+     * Packed blobs stay readable when a store is opened without packing.
+     *
+     * @param packThreshold the maximum compressed size of packed blobs, in bytes
+     * @return this options object
+     * @see #packSegmentSize(long)
+     * @see blob.store.BlobStore#repack()
+     */
+    public BlobStoreOptions packThreshold(int packThreshold) {
+        checkArgument(packThreshold >= 0, "The pack threshold cannot be negative");
+        this.packThreshold = packThreshold;
+        return this;
+    }
+
+    public int getPackThreshold() {
+        return packThreshold;
+    }
+
+    /**
+     * Sets the size of pack file segments, defaults to 64MB. A segment is sealed once it is full,
+     * and only sealed segments get repacked.
+     *
+     * @param packSegmentSize the segment size in bytes
+     * @return this options object
+     * @see #packThreshold(int)
+     */
+    public BlobStoreOptions packSegmentSize(long packSegmentSize) {
+        checkArgument(packSegmentSize > 0L, "The pack segment size must be positive");
+        this.packSegmentSize = packSegmentSize;
+        return this;
+    }
+
+    public long getPackSegmentSize() {
+        return packSegmentSize;
+    }
+
+    /**
+     * Sets the number of sub-directory levels that blob files are fanned out to. Stores keep their
+     * layout by default, and new stores have blob files right in the store directory.
+     * <p/>
+     * With one level, a blob file goes to <code>ab/cdef...</code> after the first byte of its
+     * SHA1, and with two levels it goes to <code>ab/cd/ef...</code>. Opening an existing store
+     * with another fan-out keeps its blob files readable, and new blob files go to the new layout
+     * until the others get moved by <code>BlobStore.migrateLayout()</code>.
+     *
+     * @param fanOut the number of sub-directory levels, from <code>0</code> to <code>2</code>
+     * @return this options object
+     * @see blob.store.BlobStore#migrateLayout()
+     */
+    public BlobStoreOptions fanOut(int fanOut) {
+        checkArgument(fanOut >= 0 && fanOut <= BlobLayout.MAX_LEVELS, "The fan-out must be between 0 and 2");
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * Sets the size of the read cache of decompressed blobs, defaults to <code>0</code> which
+     * disables the cache. The least recently used blobs get evicted first, and blobs larger than
+     * a sixteenth of the cache are never cached.
+     *
+     * @param cacheSize the cache size in bytes
+     * @return this options object
+     * @see blob.store.BlobStore#getCacheStats()
+     */
+    public BlobStoreOptions cacheSize(long cacheSize) {
+        checkArgument(cacheSize >= 0L, "The cache size cannot be negative");
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the number of threads that compress the segments of large blobs in parallel, defaults
+     * to <code>1</code> which compresses blobs on the calling thread.
+     * <p/>
+     * Blobs larger than a megabyte are then read and hashed by the calling thread, while their
+     * segments are compressed by a pool shared by all the puts. Compressed blob files are the same
+     * as with a single thread for the LZ4 and block-deflate codecs, while GZIP blob files get one
+     * GZIP member per segment. As such files are cut short by clients that only read the first
+     * member, <code>transferTo</code> sends them decompressed. Chunking and uncompressed stores
+     * always use the calling thread.
+     *
+     * @param compressionThreads the number of compression threads
+     * @return this options object
+     */
+    public BlobStoreOptions compressionThreads(int compressionThreads) {
+        checkArgument(compressionThreads > 0, "There must be at least one compression thread");
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Sets the stored size in bytes that the store may hold, defaults to <code>0</code> for an
+     * unbounded store.
+     * <p/>
+     * The stored size is the compressed size of the indexed blobs, chunked blobs counting their
+     * manifest and all of their chunks. Once a put brings the store over its capacity, blobs get
+     * evicted in the background together with every key pointing to them, until the store is
+     * back to nine tenths of its capacity. This makes the store a disk cache: sizes and access
+     * times are tracked in memory, without any disk write on reads.
+     *
+     * @param capacityBytes the capacity in bytes
+     * @return this options object
+     * @see #evictionPolicy(EvictionPolicy)
+     * @see blob.store.BlobStore#evict()
+     */
+    public BlobStoreOptions capacityBytes(long capacityBytes) {
+        checkArgument(capacityBytes >= 0L, "The capacity cannot be negative");
+        this.capacityBytes = capacityBytes;
+        return this;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Sets the number of keys that the store may hold, defaults to <code>0</code> for an
+     * unbounded store. Blobs get evicted like with a capacity in bytes.
+     *
+     * @param capacityKeys the capacity in keys
+     * @return this options object
+     * @see #capacityBytes(long)
+     */
+    public BlobStoreOptions capacityKeys(long capacityKeys) {
+        checkArgument(capacityKeys >= 0L, "The capacity cannot be negative");
+        this.capacityKeys = capacityKeys;
+        return this;
+    }
+
+    public long getCapacityKeys() {
+        return capacityKeys;
+    }
+
+    /**
+     * Sets the policy that picks the blobs to evict when the store has a capacity, defaults to
+     * <code>EvictionPolicy.LRU</code>.
+     *
+     * @param evictionPolicy the eviction policy
+     * @return this options object
+     * @see blob.store.EvictionPolicy
+     */
+    public BlobStoreOptions evictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = checkNotNull(evictionPolicy);
+        return this;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets the metrics that the store reports its operations to, defaults to metrics that drop
+     * everything.
+     *
+     * @param metrics the metrics
+     * @return this options object
+     * @see blob.store.InMemoryMetrics
+     */
+    public BlobStoreOptions metrics(Metrics metrics) {
+        this.metrics = checkNotNull(metrics);
+        return this;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package blob.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Per-blob bookkeeping, keyed by SHA1 digest: the number of references to each blob from index
+ * entries and manifests and, for capacity-bounded stores, the stored size and last access of
+ * blobs.
+ * <p/>
+ * Reference counts are kept in a primitive array indexed by <code>DigestTable</code> slot, and
+ * unreferenced blobs are removed from the table. When usage is tracked, two more arrays hold the
+ * stored sizes, with <code>-1</code> for untracked blobs, and the last access times in tenths of
+ * a second since the table was created. Chunks are tracked on their own, so that a chunk shared
+ * by several manifests is only counted once, and they only become eviction candidates once a key
+ * points to them. The usage of a blob goes away with its last reference, whichever way the
+ * reference gets dropped.
+ * <p/>
+ * Lookups and access updates lock the stripe of their digest, so that concurrent reads of
+ * distinct blobs seldom contend. Other operations move slots around, and lock every stripe.
+ * Stores without a capacity never record accesses, and use a single stripe.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore
+ * @see blob.store.DigestTable
+ */
+final class BlobTable extends DigestTable {
+
+    private static final long TICK_MILLIS = 100L;
+    private static final int STRIPES = 16;
+    private static final int UNINDEXED = Integer.MIN_VALUE;
+    private static final int SCAN_BLOCK = 4096;
+
+    /**
+     * A blob that may get evicted.
+     */
+    static final class Candidate implements Comparable<Candidate> {
+
+        final String sha1;
+        final long size;
+        final int references;
+        final double score;
+
+        private Candidate(String sha1, long size, int references, double score) {
+            this.sha1 = sha1;
+            this.size = size;
+            this.references = references;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
+    private final boolean usageTracked;
+    private final LockStripes stripes;
+    private final long epoch = System.currentTimeMillis();
+    private int[] references;
+    private long[] sizes;
+    private int[] accesses;
+    private volatile long trackedBytes;
+
+    /**
+     * @param usageTracked whether to track the size and last access of blobs
+     */
+    BlobTable(boolean usageTracked) {
+        this.usageTracked = usageTracked;
+        stripes = new LockStripes(usageTracked ? STRIPES : 1);
+        allocate(capacity());
+    }
+
+    private void allocate(int capacity) {
+        references = new int[capacity];
+        if (usageTracked) {
+            sizes = new long[capacity];
+            accesses = new int[capacity];
+        }
+    }
+
+    /**
+     * Adds a reference to a blob.
+     *
+     * @param sha1 the blob SHA1
+     * @return the new reference count
+     */
+    int retain(String sha1) {
+        byte[] digest = Sha1.toBytes(sha1);
+        stripes.lockAll();
+        try {
+            int slot = find(digest);
+            if (slot < 0) {
+                slot = add(digest);
+                references[slot] = 0;
+                if (usageTracked) {
+                    sizes[slot] = -1L;
+                    accesses[slot] = UNINDEXED;
+                }
+            }
+            references[slot] = references[slot] + 1;
+            return references[slot];
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+
+    /**
+     * Drops a reference to a blob, and its usage along with the last reference.
+     *
+     * @param sha1 the blob SHA1
+     * @return the new reference count, <code>0</code> if the blob is no longer referenced
+     */
+    int release(String sha1) {
+        byte[] digest = Sha1.toBytes(sha1);
+        stripes.lockAll();
+        try {
+            int slot = find(digest);
+            if (slot < 0) {
+                return 0;
+            }
+            references[slot] = references[slot] - 1;
+            if (references[slot] > 0) {
+                return references[slot];
+            }
+            if (usageTracked && sizes[slot] >= 0L) {
+                trackedBytes = trackedBytes - sizes[slot];
+            }
+            free(slot);
+            return 0;
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+
+    /**
+     * @param sha1 the blob SHA1
+     * @return the number of index entries and manifests pointing to the blob
+     */
+    int references(String sha1) {
+        byte[] digest = Sha1.toBytes(sha1);
+        Lock stripe = stripes.get(sha1);
+        stripe.lock();
+        try {
+            int slot = find(digest);
+            return (slot < 0) ? 0 : references[slot];
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @param sha1 the blob SHA1
+     * @return the tracked stored size of the blob, or <code>-1</code>
+     */
+    long trackedSize(String sha1) {
+        byte[] digest = Sha1.toBytes(sha1);
+        Lock stripe = stripes.get(sha1);
+        stripe.lock();
+        try {
+            int slot = find(digest);
+            return (slot < 0 || !usageTracked) ? -1L : sizes[slot];
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Records an access to a blob whose usage is tracked. This only locks the stripe of the blob.
+     *
+     * @param sha1 the blob SHA1
+     * @param now  the access time in milliseconds
+     * @return <code>false</code> if the blob usage is not tracked
+     */
+    boolean touch(String sha1, long now) {
+        byte[] digest = Sha1.toBytes(sha1);
+        Lock stripe = stripes.get(sha1);
+        stripe.lock();
+        try {
+            int slot = find(digest);
+            if (slot < 0 || sizes[slot] < 0L) {
+                return false;
+            }
+            accesses[slot] = tick(now);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Starts tracking the usage of a referenced blob that a key points to. A blob that is tracked
+     * as a chunk already only gets its access time.
+     *
+     * @param sha1       the blob SHA1
+     * @param size       the stored blob size in bytes, which excludes the chunks of a chunked blob
+     * @param lastAccess the last access time in milliseconds
+     */
+    void track(String sha1, long size, long lastAccess) {
+        trackSize(sha1, size, tick(lastAccess));
+    }
+
+    /**
+     * Starts tracking the size of a referenced chunk, unless it is tracked already.
+     *
+     * @param sha1 the chunk SHA1
+     * @param size the stored chunk size in bytes
+     */
+    void trackChunk(String sha1, long size) {
+        trackSize(sha1, size, UNINDEXED);
+    }
+
+    private void trackSize(String sha1, long size, int access) {
+        byte[] digest = Sha1.toBytes(sha1);
+        stripes.lockAll();
+        try {
+            int slot = find(digest);
+            if (slot < 0) {
+                return;
+            }
+            if (sizes[slot] < 0L) {
+                sizes[slot] = size;
+                accesses[slot] = access;
+                trackedBytes = trackedBytes + size;
+            } else if (access != UNINDEXED && accesses[slot] == UNINDEXED) {
+                accesses[slot] = access;
+            }
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+
+    /**
+     * @param sha1 the blob SHA1
+     * @return whether the usage of the blob is tracked, as a blob or as a chunk
+     */
+    boolean tracked(String sha1) {
+        return trackedSize(sha1) >= 0L;
+    }
+
+    /**
+     * @return the stored size of the tracked blobs and chunks, in bytes
+     */
+    long trackedBytes() {
+        return trackedBytes;
+    }
+
+    /**
+     * Gives the tracked blobs that an eviction policy would evict first. This takes a single pass
+     * over the arrays, and only keeps a bounded heap of candidates. The pass locks every stripe
+     * for one block of slots at a time, so that it does not hold reads back for long.
+     *
+     * @param policy the eviction policy
+     * @param now    the current time in milliseconds
+     * @param count  the maximum number of candidates
+     * @return the candidates, from the first to evict to the last
+     */
+    List<Candidate> evictionCandidates(EvictionPolicy policy, long now, int count) {
+        int tick = tick(now);
+        PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(count + 1);
+        for (int start = 0; ; start = start + SCAN_BLOCK) {
+            stripes.lockAll();
+            try {
+                if (start >= capacity()) {
+                    break;
+                }
+                for (int slot = start; slot < Math.min(capacity(), start + SCAN_BLOCK); slot++) {
+                    if (!used(slot) || sizes[slot] < 0L || accesses[slot] == UNINDEXED) {
+                        continue;
+                    }
+                    double score = policy.score(sizes[slot], Math.max(0L, (long) tick - accesses[slot]) * TICK_MILLIS);
+                    if (heap.size() < count || score > heap.peek().score) {
+                        heap.add(new Candidate(sha1(slot), sizes[slot], references[slot], score));
+                        if (heap.size() > count) {
+                            heap.poll();
+                        }
+                    }
+                }
+            } finally {
+                stripes.unlockAll();
+            }
+        }
+        List<Candidate> candidates = new ArrayList<Candidate>(heap);
+        Collections.sort(candidates, Collections.reverseOrder());
+        return candidates;
+    }
+
+    private int tick(long millis) {
+        long tick = (millis - epoch) / TICK_MILLIS;
+        return (int) Math.max(UNINDEXED + 1, Math.min(Integer.MAX_VALUE, tick));
+    }
+
+    @Override
+    void move(int from, int to) {
+        references[to] = references[from];
+        if (usageTracked) {
+            sizes[to] = sizes[from];
+            accesses[to] = accesses[from];
+        }
+    }
+
+    @Override
+    void resized(int capacity, int[] slots) {
+        int[] oldReferences = references;
+        long[] oldSizes = sizes;
+        int[] oldAccesses = accesses;
+        allocate(capacity);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] >= 0) {
+                references[slots[i]] = oldReferences[i];
+                if (usageTracked) {
+                    sizes[slots[i]] = oldSizes[i];
+                    accesses[slots[i]] = oldAccesses[i];
+                }
+            }
+        }
+    }
+}
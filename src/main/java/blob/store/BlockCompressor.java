@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the blocks of block streams.
+ * <p/>
+ * Compressors hold scratch state, so each stream has a compressor of its own.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlockOutputStream
+ * @see blob.store.BlockInputStream
+ */
+abstract class BlockCompressor {
+
+    /**
+     * @return the largest compressed length of a block, which may be larger than its length
+     */
+    abstract int maxCompressedLength(int length);
+
+    /**
+     * Compresses a block.
+     *
+     * @return the compressed length, which is at least <code>srcLength</code> when the block does not shrink
+     */
+    abstract int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset);
+
+    /**
+     * Decompresses a block.
+     *
+     * @throws IOException when the block does not decompress to exactly <code>dstLength</code> bytes
+     */
+    abstract void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException;
+
+    /**
+     * Releases the resources held by this compressor.
+     */
+    void end() {
+    }
+
+    static BlockCompressor lz4() {
+        return new Lz4();
+    }
+
+    static BlockCompressor deflate(int level) {
+        return new Deflate(level);
+    }
+
+    private static final class Lz4 extends BlockCompressor {
+
+        private int[] table;
+
+        @Override
+        int maxCompressedLength(int length) {
+            return Lz4Block.maxCompressedLength(length);
+        }
+
+        @Override
+        int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+            if (table == null) {
+                table = new int[Lz4Block.HASH_TABLE_SIZE];
+            }
+            return Lz4Block.compress(src, srcOffset, srcLength, dst, dstOffset, table);
+        }
+
+        @Override
+        void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+            Lz4Block.decompress(src, srcOffset, srcLength, dst, dstOffset, dstLength);
+        }
+    }
+
+    /**
+     * Raw deflate blocks, without the GZIP or ZLIB wrappers.
+     */
+    private static final class Deflate extends BlockCompressor {
+
+        private final int level;
+        private Deflater deflater;
+        private Inflater inflater;
+
+        Deflate(int level) {
+            this.level = level;
+        }
+
+        @Override
+        int maxCompressedLength(int length) {
+            return length;
+        }
+
+        @Override
+        int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+            }
+            deflater.reset();
+            deflater.setInput(src, srcOffset, srcLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < srcLength) {
+                length = length + deflater.deflate(dst, dstOffset + length, srcLength - length);
+            }
+            return deflater.finished() ? length : srcLength;
+        }
+
+        @Override
+        void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            inflater.reset();
+            inflater.setInput(src, srcOffset, srcLength);
+            try {
+                int length = 0;
+                while (length < dstLength && !inflater.finished()) {
+                    int count = inflater.inflate(dst, dstOffset + length, dstLength - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length = length + count;
+                }
+                if (length != dstLength) {
+                    throw new IOException("Corrupt deflate block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block", e);
+            }
+        }
+
+        @Override
+        void end() {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decompresses the blocks written by a <code>BlockOutputStream</code>.
+ * <p/>
+ * Skipping bytes only decompresses the block where the skip ends, and whole blocks are skipped
+ * in the underlying stream, which is a seek for file streams.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlockOutputStream
+ */
+final class BlockInputStream extends InputStream {
+
+    private final InputStream in;
+    private final BlockCompressor compressor;
+    private final byte[] header = new byte[4];
+    private byte[] block = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int position;
+    private int length;
+    private int rawLength;
+    private int storedLength;
+    private boolean finished;
+
+    BlockInputStream(InputStream in, BlockCompressor compressor) {
+        this.in = in;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int b = block[position] & 0xff;
+        position = position + 1;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int chunk = Math.min(count, length - position);
+        System.arraycopy(block, position, bytes, offset, chunk);
+        position = position + chunk;
+        return chunk;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = 0L;
+        while (skipped < count) {
+            if (position < length) {
+                int chunk = (int) Math.min(count - skipped, length - position);
+                position = position + chunk;
+                skipped = skipped + chunk;
+            } else if (finished || !readHeader()) {
+                break;
+            } else if (rawLength <= count - skipped) {
+                skipFully(storedLength & ~BlockOutputStream.STORED_FLAG);
+                skipped = skipped + rawLength;
+            } else {
+                readData();
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (position == length) {
+            if (finished || !readHeader()) {
+                return false;
+            }
+            readData();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next block header.
+     *
+     * @return <code>false</code> at the end of the stream
+     */
+    private boolean readHeader() throws IOException {
+        readFully(header, 4);
+        rawLength = getInt(header);
+        if (rawLength == 0) {
+            finished = true;
+            return false;
+        }
+        readFully(header, 4);
+        storedLength = getInt(header);
+        if (rawLength < 0 || rawLength > BlockOutputStream.BLOCK_SIZE) {
+            throw new IOException("Corrupt block stream");
+        }
+        if ((storedLength & BlockOutputStream.STORED_FLAG) != 0) {
+            if ((storedLength & ~BlockOutputStream.STORED_FLAG) != rawLength) {
+                throw new IOException("Corrupt block stream");
+            }
+        } else if (storedLength < 0 || storedLength > compressor.maxCompressedLength(rawLength)) {
+            throw new IOException("Corrupt block stream");
+        }
+        return true;
+    }
+
+    private void readData() throws IOException {
+        if (block.length < rawLength) {
+            block = new byte[rawLength];
+        }
+        if ((storedLength & BlockOutputStream.STORED_FLAG) != 0) {
+            readFully(block, rawLength);
+        } else {
+            if (compressed.length < storedLength) {
+                compressed = new byte[storedLength];
+            }
+            readFully(compressed, storedLength);
+            compressor.decompress(compressed, 0, storedLength, block, 0, rawLength);
+        }
+        position = 0;
+        length = rawLength;
+    }
+
+    private void skipFully(int count) throws IOException {
+        try {
+            ByteStreams.skipFully(in, count);
+        } catch (EOFException e) {
+            throw new IOException("Truncated block stream", e);
+        }
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        try {
+            ByteStreams.readFully(in, bytes, 0, length);
+        } catch (EOFException e) {
+            throw new IOException("Truncated block stream", e);
+        }
+    }
+
+    private static int getInt(byte[] bytes) {
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compressor.end();
+        in.close();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that compresses data as a sequence of independently compressed blocks.
+ * <p/>
+ * Each block starts with its uncompressed length and its stored length, as 32 bits integers.
+ * Blocks that do not shrink are stored as-is, which is flagged by the high bit of the stored
+ * length. An uncompressed length of zero marks the end of the stream. Since each block gives its
+ * lengths upfront, readers can skip blocks without decompressing them.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlockCompressor
+ * @see blob.store.BlockInputStream
+ */
+final class BlockOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int STORED_FLAG = 0x80000000;
+
+    static final int BLOCK_HEADER_LENGTH = 8;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final OutputStream out;
+    private final BlockCompressor compressor;
+    // Buffers grow up to the block size, so that small blobs do not pay for full blocks
+    private byte[] block = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] compressed = new byte[0];
+    private int length;
+    private boolean closed;
+
+    BlockOutputStream(OutputStream out, BlockCompressor compressor) {
+        this.out = out;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        block[length] = (byte) b;
+        length = length + 1;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        while (count > 0) {
+            int chunk = ensureCapacity(count);
+            System.arraycopy(bytes, offset, block, length, chunk);
+            length = length + chunk;
+            offset = offset + chunk;
+            count = count - chunk;
+        }
+    }
+
+    private int ensureCapacity(int count) throws IOException {
+        if (length == BLOCK_SIZE) {
+            writeBlock();
+        }
+        if (length + count > block.length && block.length < BLOCK_SIZE) {
+            int size = block.length;
+            while (size < length + count && size < BLOCK_SIZE) {
+                size = size << 1;
+            }
+            byte[] grown = new byte[Math.min(size, BLOCK_SIZE)];
+            System.arraycopy(block, 0, grown, 0, length);
+            block = grown;
+        }
+        return Math.min(count, block.length - length);
+    }
+
+    private void writeBlock() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (compressed.length < BLOCK_HEADER_LENGTH + compressor.maxCompressedLength(length)) {
+            compressed = new byte[BLOCK_HEADER_LENGTH + compressor.maxCompressedLength(block.length)];
+        }
+        // The block header goes in front of the compressed data, so that each block is a single write
+        int compressedLength = compressor.compress(block, 0, length, compressed, BLOCK_HEADER_LENGTH);
+        putInt(compressed, 0, length);
+        if (compressedLength < length) {
+            putInt(compressed, 4, compressedLength);
+            out.write(compressed, 0, BLOCK_HEADER_LENGTH + compressedLength);
+        } else {
+            putInt(compressed, 4, length | STORED_FLAG);
+            out.write(compressed, 0, BLOCK_HEADER_LENGTH);
+            out.write(block, 0, length);
+        }
+        length = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBlock();
+            out.write(new byte[4]);
+        } finally {
+            compressor.end();
+            out.close();
+        }
+    }
+
+    static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
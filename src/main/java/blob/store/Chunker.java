@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits a stream into content-defined chunks.
+ * <p/>
+ * Chunk boundaries are found with a Buzhash rolling hash over a small window of bytes, so that
+ * an edit in a stream only changes the chunks around it. The hash is reset at the start of each
+ * chunk and only rolls once a chunk has reached its minimum size, so the boundaries of a chunk
+ * only depend on its own content. Chunks are between a quarter and four times the average size.
+ *
+ * @author Julien Ponge
+ */
+final class Chunker {
+
+    static final int MIN_AVERAGE_SIZE = 1024;
+    static final int MAX_AVERAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int WINDOW = 48;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        // The table must never change, or stored blobs would stop sharing chunks with new ones
+        Random random = new Random(0x626c6f62L);
+        for (int i = 0; i < TABLE.length; i++) {
+            TABLE[i] = random.nextInt();
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int maxSize;
+    private final int mask;
+    private final byte[] buffer;
+    private int position;
+    private int end;
+    private boolean eof;
+    private int offset;
+    private int length;
+
+    Chunker(InputStream in, int averageSize) {
+        checkArgument(isValidAverageSize(averageSize), "Invalid average chunk size: %s", averageSize);
+        this.in = in;
+        minSize = averageSize / 4;
+        maxSize = averageSize * 4;
+        mask = averageSize - 1;
+        buffer = new byte[maxSize * 2];
+    }
+
+    static boolean isValidAverageSize(int averageSize) {
+        return averageSize >= MIN_AVERAGE_SIZE && averageSize <= MAX_AVERAGE_SIZE && Integer.bitCount(averageSize) == 1;
+    }
+
+    /**
+     * Moves to the next chunk, whose data stays in the chunker buffer until the next call.
+     *
+     * @return <code>false</code> at the end of the stream
+     * @throws IOException if the stream could not be read
+     */
+    boolean next() throws IOException {
+        fill();
+        if (position == end) {
+            return false;
+        }
+        offset = position;
+        length = findBoundary(position, Math.min(end - position, maxSize));
+        position = position + length;
+        return true;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void fill() throws IOException {
+        if (eof || end - position >= maxSize) {
+            return;
+        }
+        System.arraycopy(buffer, position, buffer, 0, end - position);
+        end = end - position;
+        position = 0;
+        int read = ByteStreams.read(in, buffer, end, buffer.length - end);
+        end = end + read;
+        eof = (end < buffer.length);
+    }
+
+    private int findBoundary(int start, int limit) {
+        if (limit <= minSize) {
+            return limit;
+        }
+        int hash = 0;
+        for (int i = start + minSize - WINDOW; i < start + minSize; i++) {
+            hash = Integer.rotateLeft(hash, 1) ^ TABLE[buffer[i] & 0xff];
+        }
+        int stop = start + limit;
+        for (int i = start + minSize; i < stop; i++) {
+            if ((hash & mask) == 0) {
+                return i - start;
+            }
+            hash = Integer.rotateLeft(hash, 1)
+                    ^ Integer.rotateLeft(TABLE[buffer[i - WINDOW] & 0xff], WINDOW)
+                    ^ TABLE[buffer[i] & 0xff];
+        }
+        return limit;
+    }
+}
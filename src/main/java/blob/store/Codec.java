@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A compression codec for blob files.
+ * <p/>
+ * GZIP blobs are plain GZIP files, just like those written by earlier versions of the store. Other
+ * codecs start their blob files with a 5 bytes header made of the <code>BLOB</code> magic string
+ * and a codec identifier. Blobs are always read with the codec they were written with, so a store
+ * may hold blobs written by different codecs.
+ * <p/>
+ * The LZ4 and block deflate codecs compress blobs as independent blocks, so that reading a range
+ * of a blob only decompresses the blocks that overlap the range. GZIP blobs have to be
+ * decompressed from their start.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions#codec(Codec)
+ */
+public abstract class Codec {
+
+    private static final byte[] MAGIC = {'B', 'L', 'O', 'B'};
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final int GZIP_FEXTRA = 0x04;
+
+    // An empty GZIP member whose extra field marks a blob made of several members
+    private static final byte[] MULTI_MEMBER_MARKER = {
+            0x1f, (byte) 0x8b, 8, GZIP_FEXTRA, 0, 0, 0, 0, 0, 0,
+            4, 0, 'B', 'M', 0, 0,
+            3, 0,
+            0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final byte NONE_ID = 0;
+    private static final byte LZ4_ID = 1;
+    private static final byte BLOCK_DEFLATE_ID = 2;
+
+    // Segments of a multiple of this size get split into the same blocks as a single stream
+    static final int SEGMENT_ALIGNMENT = BlockOutputStream.BLOCK_SIZE;
+
+    private static final Codec NONE = new Codec("none") {
+        @Override
+        OutputStream newOutputStream(OutputStream out) throws IOException {
+            writeHeader(out, NONE_ID);
+            return out;
+        }
+    };
+
+    private static final Codec LZ4 = new Codec("lz4") {
+        @Override
+        OutputStream newOutputStream(OutputStream out) throws IOException {
+            writeHeader(out, LZ4_ID);
+            return new BlockOutputStream(out, BlockCompressor.lz4());
+        }
+
+        @Override
+        byte[] compressSegment(byte[] bytes, int offset, int length, boolean first, boolean last) throws IOException {
+            return compressBlocks(LZ4_ID, BlockCompressor.lz4(), bytes, offset, length, first, last);
+        }
+    };
+
+    private static final Codec GZIP = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    private final String name;
+
+    private Codec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Stores blobs without compression.
+     *
+     * @return the codec
+     */
+    public static Codec none() {
+        return NONE;
+    }
+
+    /**
+     * Compresses blobs with GZIP at the default deflate level.
+     *
+     * @return the codec
+     */
+    public static Codec gzip() {
+        return GZIP;
+    }
+
+    /**
+     * Compresses blobs with GZIP at a given deflate level.
+     *
+     * @param level the deflate level, from <code>1</code> (fastest) to <code>9</code> (smallest), or <code>-1</code> for the default level
+     * @return the codec
+     */
+    public static Codec deflate(final int level) {
+        checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION),
+                "Invalid deflate level: %s", level);
+        return new Codec(level == Deflater.DEFAULT_COMPRESSION ? "gzip" : "deflate-" + level) {
+            @Override
+            OutputStream newOutputStream(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+
+            @Override
+            byte[] compressSegment(byte[] bytes, int offset, int length, boolean first, boolean last) throws IOException {
+                // Each segment is a GZIP member of its own, and GZIP readers read members in sequence.
+                // Many HTTP clients stop after the first member though, so a marker member comes first.
+                if (length == 0 && !last) {
+                    return first ? MULTI_MEMBER_MARKER.clone() : new byte[0];
+                }
+                ByteArrayOutputStream segment = new ByteArrayOutputStream(length / 2 + 64);
+                OutputStream out = newOutputStream(segment);
+                out.write(bytes, offset, length);
+                out.close();
+                return segment.toByteArray();
+            }
+        };
+    }
+
+    /**
+     * Compresses blobs with a pure Java LZ4 block compressor, which trades some compression ratio
+     * for much faster compression and decompression than GZIP.
+     *
+     * @return the codec
+     */
+    public static Codec lz4() {
+        return LZ4;
+    }
+
+    /**
+     * Compresses blobs with deflate in independent blocks of 64KB, which compress a little less
+     * than GZIP but support range reads.
+     *
+     * @param level the deflate level, from <code>1</code> (fastest) to <code>9</code> (smallest), or <code>-1</code> for the default level
+     * @return the codec
+     * @see blob.store.BlobStore#get(String, long, long)
+     */
+    public static Codec blockDeflate(final int level) {
+        checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION),
+                "Invalid deflate level: %s", level);
+        return new Codec(level == Deflater.DEFAULT_COMPRESSION ? "block-deflate" : "block-deflate-" + level) {
+            @Override
+            OutputStream newOutputStream(OutputStream out) throws IOException {
+                writeHeader(out, BLOCK_DEFLATE_ID);
+                return new BlockOutputStream(out, BlockCompressor.deflate(level));
+            }
+
+            @Override
+            byte[] compressSegment(byte[] bytes, int offset, int length, boolean first, boolean last) throws IOException {
+                return compressBlocks(BLOCK_DEFLATE_ID, BlockCompressor.deflate(level), bytes, offset, length, first, last);
+            }
+        };
+    }
+
+    /**
+     * Wraps a blob file stream, writing the codec header if any.
+     *
+     * @param out the raw blob file stream
+     * @return the compressing stream, which closes <code>out</code> when closed
+     * @throws IOException when the header cannot be written
+     */
+    abstract OutputStream newOutputStream(OutputStream out) throws IOException;
+
+    /**
+     * Compresses a segment of a blob on its own, so that the segments of a large blob can be
+     * compressed in parallel and written one after the other.
+     *
+     * @param bytes  the segment bytes
+     * @param offset the segment offset
+     * @param length the segment length, which must be a multiple of <code>SEGMENT_ALIGNMENT</code> except for the last segment
+     * @param first  whether this is the first segment of the blob
+     * @param last   whether this is the last segment of the blob
+     * @return the compressed segment, or <code>null</code> if this codec does not compress segments on their own
+     * @throws IOException when the segment cannot be compressed
+     */
+    byte[] compressSegment(byte[] bytes, int offset, int length, boolean first, boolean last) throws IOException {
+        return null;
+    }
+
+    private static byte[] compressBlocks(byte id, BlockCompressor compressor, byte[] bytes, int offset, int length,
+                                         boolean first, boolean last) throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream(length / 2 + 64);
+        if (first) {
+            writeHeader(segment, id);
+        }
+        BlockOutputStream out = new BlockOutputStream(segment, compressor);
+        out.write(bytes, offset, length);
+        if (last) {
+            out.close();
+        } else {
+            out.flush();
+            compressor.end();
+        }
+        return segment.toByteArray();
+    }
+
+    private static void writeHeader(OutputStream out, byte id) throws IOException {
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+        header[MAGIC.length] = id;
+        out.write(header);
+    }
+
+    /**
+     * Opens a blob file stream, picking the codec from its header.
+     *
+     * @param in the raw blob file stream, which gets closed if the header cannot be read
+     * @return the decompressed stream
+     * @throws IOException when the blob file cannot be read or has an unknown format
+     */
+    static InputStream newInputStream(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, HEADER_LENGTH);
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            int length = 0;
+            while (length < HEADER_LENGTH) {
+                int count = pushback.read(header, length, HEADER_LENGTH - length);
+                if (count < 0) {
+                    break;
+                }
+                length = length + count;
+            }
+            if (length >= 2 && (header[0] & 0xff) == GZIP_MAGIC_0 && (header[1] & 0xff) == GZIP_MAGIC_1) {
+                pushback.unread(header, 0, length);
+                return new GZIPInputStream(pushback);
+            }
+            if (length == HEADER_LENGTH && hasMagic(header)) {
+                switch (header[MAGIC.length]) {
+                    case NONE_ID:
+                        return pushback;
+                    case LZ4_ID:
+                        return new BlockInputStream(pushback, BlockCompressor.lz4());
+                    case BLOCK_DEFLATE_ID:
+                        return new BlockInputStream(pushback, BlockCompressor.deflate(Deflater.DEFAULT_COMPRESSION));
+                    default:
+                        throw new IOException("Unknown blob codec: " + header[MAGIC.length]);
+                }
+            }
+            throw new IOException("Unknown blob format");
+        } catch (IOException e) {
+            pushback.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells whether a blob file can be sent as-is, from its first bytes.
+     *
+     * @param header the first bytes of the blob file
+     * @param length the number of bytes in <code>header</code>
+     * @return <code>GZIP</code> for single member GZIP blobs, <code>IDENTITY</code> for uncompressed
+     *         blobs whose data follows a <code>HEADER_LENGTH</code> bytes header, or <code>null</code>
+     *         when the blob has to be decompressed
+     */
+    static ContentEncoding rawEncoding(byte[] header, int length) {
+        if (length >= 4 && (header[0] & 0xff) == GZIP_MAGIC_0 && (header[1] & 0xff) == GZIP_MAGIC_1) {
+            // Blobs compressed in parallel start with a marker member, which has an extra field
+            return ((header[3] & GZIP_FEXTRA) == 0) ? ContentEncoding.GZIP : null;
+        }
+        if (length >= HEADER_LENGTH && hasMagic(header) && header[MAGIC.length] == NONE_ID) {
+            return ContentEncoding.IDENTITY;
+        }
+        return null;
+    }
+
+    private static boolean hasMagic(byte[] header) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * The encoding of blob data sent as-is by <code>BlobStore.transferTo</code>, named after the
+ * matching HTTP <code>Content-Encoding</code> values.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore#transferTo(String, java.nio.channels.WritableByteChannel, boolean)
+ */
+public enum ContentEncoding {
+
+    /**
+     * Plain blob data.
+     */
+    IDENTITY("identity"),
+
+    /**
+     * GZIP-compressed blob data.
+     */
+    GZIP("gzip");
+
+    private final String token;
+
+    private ContentEncoding(String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return the HTTP <code>Content-Encoding</code> token
+     */
+    @Override
+    public String toString() {
+        return token;
+    }
+}
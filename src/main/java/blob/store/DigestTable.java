@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package blob.store;
+
+/**
+ * The slots of an open-addressing hash table keyed by raw SHA1 digests, with linear probing.
+ * <p/>
+ * Digests are packed in a byte array, next to an array of flags for the used slots. Subclasses
+ * keep their values in primitive arrays indexed by slot, and move them along when removals shift
+ * entries back or when the table gets resized.
+ * <p/>
+ * Slots are not thread-safe: subclasses guard every call.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobTable
+ * @see blob.store.PackTable
+ */
+abstract class DigestTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] digests;
+    private boolean[] used;
+    private int size;
+
+    DigestTable() {
+        digests = new byte[INITIAL_CAPACITY * Sha1.LENGTH];
+        used = new boolean[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Moves the values of a slot to another one, when a removal shifts entries back.
+     */
+    abstract void move(int from, int to);
+
+    /**
+     * Reallocates the value arrays after a resize.
+     *
+     * @param capacity the new number of slots
+     * @param slots    the new slot of each previous slot, or <code>-1</code> for unused slots
+     */
+    abstract void resized(int capacity, int[] slots);
+
+    final int capacity() {
+        return used.length;
+    }
+
+    final int size() {
+        return size;
+    }
+
+    final boolean used(int slot) {
+        return used[slot];
+    }
+
+    /**
+     * @return the slot of a digest, or <code>-1</code>
+     */
+    final int find(byte[] digest) {
+        int mask = used.length - 1;
+        int slot = home(digest, 0) & mask;
+        while (used[slot]) {
+            if (digestEquals(slot, digest)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a digest that is not in the table yet, and resizes the table when it gets too full.
+     * Freed slots keep their previous values, so callers must set every value of the new slot.
+     *
+     * @return the slot of the digest
+     */
+    final int add(byte[] digest) {
+        if ((size + 1) * 4L > used.length * 3L) {
+            resize(used.length * 2);
+        }
+        size = size + 1;
+        return insert(digest);
+    }
+
+    /**
+     * Frees a slot, and shifts back the entries that probed past it.
+     */
+    final void free(int slot) {
+        size = size - 1;
+        int mask = used.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!used[next]) {
+                break;
+            }
+            int home = home(digests, next * Sha1.LENGTH) & mask;
+            boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                System.arraycopy(digests, next * Sha1.LENGTH, digests, hole * Sha1.LENGTH, Sha1.LENGTH);
+                move(next, hole);
+                hole = next;
+            }
+        }
+        used[hole] = false;
+    }
+
+    final byte[] digest(int slot) {
+        byte[] digest = new byte[Sha1.LENGTH];
+        System.arraycopy(digests, slot * Sha1.LENGTH, digest, 0, Sha1.LENGTH);
+        return digest;
+    }
+
+    final String sha1(int slot) {
+        return Sha1.toHex(digests, slot * Sha1.LENGTH);
+    }
+
+    private int insert(byte[] digest) {
+        int mask = used.length - 1;
+        int slot = home(digest, 0) & mask;
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(digest, 0, digests, slot * Sha1.LENGTH, Sha1.LENGTH);
+        used[slot] = true;
+        return slot;
+    }
+
+    private boolean digestEquals(int slot, byte[] digest) {
+        int offset = slot * Sha1.LENGTH;
+        for (int i = 0; i < Sha1.LENGTH; i++) {
+            if (digests[offset + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize(int capacity) {
+        byte[] oldDigests = digests;
+        boolean[] oldUsed = used;
+        digests = new byte[capacity * Sha1.LENGTH];
+        used = new boolean[capacity];
+        int[] slots = new int[oldUsed.length];
+        byte[] digest = new byte[Sha1.LENGTH];
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                System.arraycopy(oldDigests, i * Sha1.LENGTH, digest, 0, Sha1.LENGTH);
+                slots[i] = insert(digest);
+            } else {
+                slots[i] = -1;
+            }
+        }
+        resized(capacity, slots);
+    }
+
+    private static int home(byte[] bytes, int offset) {
+        // Digests are uniformly distributed already
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+}
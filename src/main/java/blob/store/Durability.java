@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * Durability guarantees for the index log of a blob store.
+ * <p/>
+ * Index entries are always handed to the operating system before a <code>put</code> or a
+ * <code>remove</code> returns. The durability level decides whether and how often the log
+ * is forced to the storage device.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions
+ */
+public enum Durability {
+
+    /**
+     * Never force the index log, and leave flushing to the operating system.
+     */
+    NONE,
+
+    /**
+     * Force the index log once per group of concurrently committed entries.
+     */
+    PER_BATCH,
+
+    /**
+     * Force the index log after each entry, without grouping entries from concurrent callers.
+     */
+    PER_OPERATION
+}
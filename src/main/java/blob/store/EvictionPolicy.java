@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * Policies to pick the blobs that a capacity-bounded blob store evicts first.
+ * <p/>
+ * Stores track the last time each blob was put or read. Evicting a blob removes every key
+ * pointing to it, so that its storage actually gets freed.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions#capacityBytes(long)
+ * @see blob.store.BlobStoreOptions#capacityKeys(long)
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Evict the least recently used blobs first.
+     */
+    LRU {
+        @Override
+        double score(long size, long idleMillis) {
+            return idleMillis;
+        }
+    },
+
+    /**
+     * Evict the blobs with the largest product of their idle time and stored size first, so that
+     * a large blob goes before several small ones that were used at about the same time.
+     */
+    SIZE_AWARE {
+        @Override
+        double score(long size, long idleMillis) {
+            return (idleMillis + 1.0) * size;
+        }
+    };
+
+    /**
+     * Scores a blob, where blobs with higher scores get evicted first.
+     *
+     * @param size       the stored blob size in bytes
+     * @param idleMillis the time since the blob was last used
+     * @return the score
+     */
+    abstract double score(long size, long idleMillis);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics that keep counters and latency histograms in memory, for the whole life of a store.
+ * <p/>
+ * They can be read directly, or exported with <code>JmxMetrics</code>. An instance should only
+ * be used by a single store.
+ *
+ * @author Julien Ponge
+ * @see blob.store.LatencyHistogram
+ * @see blob.store.JmxMetrics
+ */
+public class InMemoryMetrics extends Metrics {
+
+    private final Map<Timer, LatencyHistogram> histograms = new EnumMap<Timer, LatencyHistogram>(Timer.class);
+    private final Map<Counter, AtomicLong> counters = new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    public InMemoryMetrics() {
+        // Both maps are filled once and for all, so that concurrent readers need no lock
+        for (Timer timer : Timer.values()) {
+            histograms.put(timer, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void time(Timer timer, long nanos) {
+        histograms.get(timer).record(nanos);
+    }
+
+    @Override
+    public void count(Counter counter, long delta) {
+        counters.get(counter).addAndGet(delta);
+    }
+
+    /**
+     * Gives the latency histogram of an operation or phase.
+     *
+     * @param timer the operation or phase
+     * @return the histogram of latencies in nanoseconds
+     */
+    public LatencyHistogram getHistogram(Timer timer) {
+        return histograms.get(timer);
+    }
+
+    /**
+     * Gives the value of a counter.
+     *
+     * @param counter the counter
+     * @return the counter value
+     */
+    public long getCount(Counter counter) {
+        return counters.get(counter).get();
+    }
+}
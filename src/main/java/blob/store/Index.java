@@ -0,0 +1,708 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.io.Files.readLines;
+
+/**
+ * The key to blob SHA1 index of a blob store.
+ * <p/>
+ * The index is persisted as a log of <code>key => sha1</code> lines. Removals append a tombstone
+ * line with no SHA1. The log is replayed in order when the index is loaded, so that the last line
+ * for a key wins.
+ * <p/>
+ * With the text format, all entries live in memory in a compact <code>KeyTable</code>. With the binary format, the log only holds
+ * the entries changed since the last compaction, on top of a memory-mapped
+ * <code>IndexSnapshot</code>, and the in-memory overlay records tombstones for removed
+ * snapshot entries.
+ * <p/>
+ * Ordered scans seek into the snapshot, and merge it lazily with the overlay entries, which a
+ * <code>KeyOrder</code> keeps sorted: listing the keys under a prefix costs logarithmic seeks and
+ * the matching entries, whatever the format. The order is built on the first scan and rebuilt in
+ * the background as the overlay changes, on the compaction thread.
+ * <p/>
+ * Dead log lines (overwritten entries and tombstones in text format, every line in binary format)
+ * accumulate. Once their ratio to live entries passes the configured threshold, a background
+ * compaction writes the live entries to a side file, copies the log lines appended in the meantime,
+ * and atomically renames the side file over the log. In binary format the new snapshot is renamed
+ * first: replaying an old log over a newer snapshot yields the same entries, so a crash between
+ * both renames is harmless.
+ *
+ * @author Julien Ponge
+ * @see blob.store.IndexLog
+ * @see blob.store.IndexSnapshot
+ */
+final class Index implements Closeable {
+
+    static final String INDEX_FILENAME = "index";
+    static final String COMPACTION_FILENAME = "index.compact";
+    static final String SNAPSHOT_COMPACTION_FILENAME = "index.bin.compact";
+
+    private static final String INDEX_LINE_SEPARATOR = " => ";
+    private static final String TOMBSTONE = "";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File indexFile;
+    private final File compactionFile;
+    private final File snapshotFile;
+    private final File snapshotCompactionFile;
+    private final IndexFormat format;
+    private volatile Generation generation;
+    private final IndexLog log;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong liveEntries = new AtomicLong();
+    private final AtomicLong logRecords = new AtomicLong();
+    private final double compactionRatio;
+    private final long compactionMinDeadRecords;
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final AtomicBoolean reorderingScheduled = new AtomicBoolean();
+    private final ExecutorService compactor;
+    private final Map<String, String> view = new IndexView();
+    private final Metrics metrics;
+
+    /**
+     * An optional snapshot, and the entries changed since it was written.
+     */
+    private static final class Generation {
+        final IndexSnapshot snapshot;
+        final KeyTable overlay;
+        final KeyOrder order = new KeyOrder();
+
+        Generation(IndexSnapshot snapshot, KeyTable overlay) {
+            this.snapshot = snapshot;
+            this.overlay = overlay;
+        }
+    }
+
+    Index(File workingDirectory, BlobStoreOptions options) {
+        indexFile = new File(workingDirectory, INDEX_FILENAME);
+        compactionFile = new File(workingDirectory, COMPACTION_FILENAME);
+        snapshotFile = new File(workingDirectory, IndexSnapshot.FILENAME);
+        snapshotCompactionFile = new File(workingDirectory, SNAPSHOT_COMPACTION_FILENAME);
+        format = options.getIndexFormat();
+        compactionRatio = options.getCompactionRatio();
+        compactionMinDeadRecords = options.getCompactionMinDeadRecords();
+        metrics = options.getMetrics();
+
+        // Leftover side files come from an interrupted compaction: the log is still authoritative
+        deleteCompactionFiles();
+        generation = new Generation(openSnapshot(), new KeyTable());
+        if (generation.snapshot != null) {
+            liveEntries.set(generation.snapshot.size());
+        }
+        if (indexFile.exists()) {
+            recoverTornRecord();
+            populate();
+        }
+        log = new IndexLog(indexFile, options.getDurability());
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("blobstore-index-compactor-%d")
+                .build());
+
+        if (format == IndexFormat.BINARY && generation.snapshot == null && indexFile.exists()) {
+            compact();
+        }
+    }
+
+    private IndexSnapshot openSnapshot() {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            return IndexSnapshot.open(snapshotFile);
+        } catch (IOException e) {
+            throw new BlobStoreException("Error while reading from the binary index file", e);
+        }
+    }
+
+    private void recoverTornRecord() {
+        try {
+            IndexLog.truncateTornRecord(indexFile);
+        } catch (IOException e) {
+            throw new BlobStoreException("Error while reading from the index file", e);
+        }
+    }
+
+    private void populate() {
+        try {
+            logRecords.set(replay(indexFile, generation, true));
+        } catch (IOException e) {
+            throw new BlobStoreException("Error while reading from the index file", e);
+        } catch (NoSuchElementException e) {
+            throw new BlobStoreException("Corrupt index file", e);
+        } catch (IllegalArgumentException e) {
+            throw new BlobStoreException("Corrupt index file", e);
+        }
+    }
+
+    private long replay(File file, Generation target, boolean countLiveEntries) throws IOException {
+        Splitter splitter = Splitter.on(INDEX_LINE_SEPARATOR);
+        long records = 0L;
+        for (String line : readLines(file, UTF_8)) {
+            Iterator<String> iterator = splitter.split(line).iterator();
+            String key = iterator.next();
+            String sha1 = iterator.next();
+            apply(target, key, sha1, countLiveEntries);
+            records = records + 1;
+        }
+        return records;
+    }
+
+    private void apply(Generation target, String key, String sha1, boolean countLiveEntries) {
+        String change = target.overlay.get(key);
+        String previous = resolve(target, key, change);
+        if (TOMBSTONE.equals(sha1)) {
+            if (target.snapshot != null && target.snapshot.get(key) != null) {
+                target.overlay.put(key, TOMBSTONE);
+                if (change == null) {
+                    target.order.added(key);
+                }
+            } else {
+                target.overlay.remove(key);
+                if (change != null) {
+                    target.order.removed(key);
+                }
+            }
+            if (countLiveEntries && previous != null) {
+                liveEntries.decrementAndGet();
+            }
+        } else {
+            target.overlay.put(key, sha1);
+            if (change == null) {
+                target.order.added(key);
+            }
+            if (countLiveEntries && previous == null) {
+                liveEntries.incrementAndGet();
+            }
+        }
+    }
+
+    private String lookup(Generation target, String key) {
+        return resolve(target, key, target.overlay.get(key));
+    }
+
+    private String resolve(Generation target, String key, String change) {
+        if (change != null) {
+            return TOMBSTONE.equals(change) ? null : change;
+        }
+        return (target.snapshot != null) ? target.snapshot.get(key) : null;
+    }
+
+    private boolean binary() {
+        return format == IndexFormat.BINARY || generation.snapshot != null;
+    }
+
+    /**
+     * Checks that a key can be stored in this index.
+     *
+     * @param key the key
+     * @throws BlobStoreException if the key cannot be stored
+     */
+    void checkKey(String key) {
+        if (binary() && key.getBytes(UTF_8).length > IndexSnapshot.MAX_KEY_LENGTH) {
+            throw new BlobStoreException("Key too long for a binary index: " + key);
+        }
+    }
+
+    String get(String key) {
+        return lookup(generation, key);
+    }
+
+    /**
+     * Counts the references to each blob. Snapshot entries are scanned without decoding their keys.
+     *
+     * @param blobs the table to count references in
+     */
+    void countReferences(BlobTable blobs) {
+        Generation current = generation;
+        if (current.snapshot != null) {
+            Iterator<String> digests = current.snapshot.digests();
+            while (digests.hasNext()) {
+                blobs.retain(digests.next());
+            }
+        }
+        Iterator<Map.Entry<String, String>> changes = current.overlay.iterator();
+        while (changes.hasNext()) {
+            Map.Entry<String, String> change = changes.next();
+            if (current.snapshot != null) {
+                String overridden = current.snapshot.get(change.getKey());
+                if (overridden != null) {
+                    blobs.release(overridden);
+                }
+            }
+            if (!TOMBSTONE.equals(change.getValue())) {
+                blobs.retain(change.getValue());
+            }
+        }
+    }
+
+    Map<String, String> asMap() {
+        return view;
+    }
+
+    /**
+     * Iterates over the entries whose key is not lower than a key, in key order.
+     * The iteration is weakly consistent with concurrent updates.
+     *
+     * @param from the lowest key
+     */
+    Iterator<Map.Entry<String, String>> scanFrom(String from) {
+        return scan(from, "");
+    }
+
+    /**
+     * Iterates over the entries whose key starts with a prefix, in key order.
+     *
+     * @param prefix the key prefix
+     */
+    Iterator<Map.Entry<String, String>> scan(String prefix) {
+        return scan(prefix, prefix);
+    }
+
+    private Iterator<Map.Entry<String, String>> scan(String from, final String prefix) {
+        Generation current = generation;
+        Iterator<Map.Entry<String, String>> base = (current.snapshot != null)
+                ? current.snapshot.iterator(from)
+                : Iterators.<Map.Entry<String, String>>emptyIterator();
+        final Iterator<Map.Entry<String, String>> entries = merge(base, changes(current, from));
+        return new AbstractIterator<Map.Entry<String, String>>() {
+            @Override
+            protected Map.Entry<String, String> computeNext() {
+                if (entries.hasNext()) {
+                    Map.Entry<String, String> entry = entries.next();
+                    // Keys sharing a prefix are contiguous in code point order
+                    if (entry.getKey().startsWith(prefix)) {
+                        return entry;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the overlay entries, tombstones included, whose key is not lower than a key.
+     */
+    private Iterator<Map.Entry<String, String>> changes(final Generation current, String from) {
+        final Iterator<String> keys = current.order.iterator(current.overlay, from);
+        return new AbstractIterator<Map.Entry<String, String>>() {
+            @Override
+            protected Map.Entry<String, String> computeNext() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    String sha1 = current.overlay.get(key);
+                    if (sha1 != null) {
+                        return Maps.immutableEntry(key, sha1);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    void put(String key, String sha1) throws IOException {
+        record(key, sha1);
+    }
+
+    /**
+     * Removes a key, callers must hold the key lock so that the entry does not change under our feet.
+     */
+    boolean remove(String key, String sha1) throws IOException {
+        if (!sha1.equals(get(key))) {
+            return false;
+        }
+        record(key, TOMBSTONE);
+        return true;
+    }
+
+    /**
+     * Records several changes with a single log append, so that they get committed together.
+     * Callers must hold the key locks.
+     *
+     * @param changes the new SHA1 of each key, or <code>null</code> to remove a key
+     */
+    void update(Map<String, String> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String sha1 = (change.getValue() != null) ? change.getValue() : TOMBSTONE;
+            lines.append(lineFor(change.getKey(), sha1));
+        }
+        lock.readLock().lock();
+        try {
+            append(lines.toString().getBytes(UTF_8));
+            logRecords.addAndGet(changes.size());
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                String sha1 = (change.getValue() != null) ? change.getValue() : TOMBSTONE;
+                apply(generation, change.getKey(), sha1, true);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        maybeScheduleCompaction();
+        maybeScheduleReordering();
+    }
+
+    private void record(String key, String sha1) throws IOException {
+        // Appends only share the lock, so that the index log can group their commits
+        lock.readLock().lock();
+        try {
+            append(lineFor(key, sha1).getBytes(UTF_8));
+            logRecords.incrementAndGet();
+            apply(generation, key, sha1, true);
+        } finally {
+            lock.readLock().unlock();
+        }
+        maybeScheduleCompaction();
+        maybeScheduleReordering();
+    }
+
+    private void append(byte[] lines) throws IOException {
+        long start = System.nanoTime();
+        log.append(lines);
+        metrics.time(Metrics.Timer.INDEX_APPEND, System.nanoTime() - start);
+    }
+
+    private String lineFor(String key, String sha1) {
+        return key + INDEX_LINE_SEPARATOR + sha1 + "\n";
+    }
+
+    long deadRecords() {
+        return binary() ? logRecords.get() : logRecords.get() - liveEntries.get();
+    }
+
+    private void maybeScheduleCompaction() {
+        long dead = deadRecords();
+        if (dead >= compactionMinDeadRecords && dead > compactionRatio * liveEntries.get()) {
+            if (compactionScheduled.compareAndSet(false, true)) {
+                compactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact();
+                        } catch (BlobStoreException ignored) {
+                            // The next mutation will schedule another attempt
+                        } finally {
+                            compactionScheduled.set(false);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void maybeScheduleReordering() {
+        final Generation current = generation;
+        if (current.order.needsRebuild() && reorderingScheduled.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        current.order.rebuild(current.overlay, lock.writeLock());
+                    } finally {
+                        reorderingScheduled.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Compacts the index log down to its live entries.
+     * <p/>
+     * Appends are only blocked while the in-memory entries are copied, and while the lines
+     * appended during the snapshot write are copied to the side file before it is swapped in.
+     */
+    void compact() {
+        synchronized (compactionLock) {
+            long start = System.nanoTime();
+            try {
+                if (binary()) {
+                    compactToBinary();
+                } else if (indexFile.exists()) {
+                    compactToText();
+                }
+                metrics.time(Metrics.Timer.INDEX_COMPACTION, System.nanoTime() - start);
+            } catch (IOException e) {
+                throw new BlobStoreException("Could not compact the index", e);
+            } finally {
+                deleteCompactionFiles();
+            }
+        }
+    }
+
+    private void compactToText() throws IOException {
+        KeyTable snapshot;
+        long snapshotLogSize;
+        lock.writeLock().lock();
+        try {
+            snapshot = generation.overlay.copy();
+            snapshotLogSize = indexFile.length();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        writeTextIndex(snapshot);
+
+        lock.writeLock().lock();
+        try {
+            long tailRecords = copyLogTail(snapshotLogSize);
+            log.close();
+            if (!compactionFile.renameTo(indexFile)) {
+                throw new BlobStoreException("Could not rename " + compactionFile + " to " + indexFile);
+            }
+            logRecords.set(snapshot.size() + tailRecords);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeTextIndex(KeyTable snapshot) throws IOException {
+        FileOutputStream out = new FileOutputStream(compactionFile);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            Iterator<Map.Entry<String, String>> entries = snapshot.iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                writer.write(lineFor(entry.getKey(), entry.getValue()));
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void compactToBinary() throws IOException {
+        Generation current;
+        SortedMap<String, String> overlay = new TreeMap<String, String>(IndexSnapshot.KEY_ORDER);
+        long snapshotLogSize;
+        lock.writeLock().lock();
+        try {
+            current = generation;
+            Iterator<Map.Entry<String, String>> changes = current.overlay.iterator();
+            while (changes.hasNext()) {
+                Map.Entry<String, String> change = changes.next();
+                overlay.put(change.getKey(), change.getValue());
+            }
+            snapshotLogSize = indexFile.length();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Iterator<Map.Entry<String, String>> base = (current.snapshot != null)
+                ? current.snapshot.iterator()
+                : Iterators.<Map.Entry<String, String>>emptyIterator();
+        IndexSnapshot.write(snapshotCompactionFile, merge(base, overlay.entrySet().iterator()));
+
+        lock.writeLock().lock();
+        try {
+            long tailRecords = copyLogTail(snapshotLogSize);
+            log.close();
+            if (!snapshotCompactionFile.renameTo(snapshotFile)) {
+                throw new BlobStoreException("Could not rename " + snapshotCompactionFile + " to " + snapshotFile);
+            }
+            if (!compactionFile.renameTo(indexFile)) {
+                throw new BlobStoreException("Could not rename " + compactionFile + " to " + indexFile);
+            }
+            Generation next = new Generation(IndexSnapshot.open(snapshotFile), new KeyTable());
+            replay(indexFile, next, false);
+            generation = next;
+            logRecords.set(tailRecords);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merges sorted snapshot entries with sorted overlay entries, where the overlay wins and
+     * tombstones hide snapshot entries.
+     */
+    private Iterator<Map.Entry<String, String>> merge(Iterator<Map.Entry<String, String>> snapshotEntries,
+                                                      Iterator<Map.Entry<String, String>> overlayEntries) {
+        final PeekingIterator<Map.Entry<String, String>> base = Iterators.peekingIterator(snapshotEntries);
+        final PeekingIterator<Map.Entry<String, String>> changes = Iterators.peekingIterator(overlayEntries);
+
+        return new AbstractIterator<Map.Entry<String, String>>() {
+            @Override
+            protected Map.Entry<String, String> computeNext() {
+                while (base.hasNext() || changes.hasNext()) {
+                    if (!changes.hasNext()) {
+                        return base.next();
+                    }
+                    if (base.hasNext()) {
+                        int comparison = IndexSnapshot.KEY_ORDER.compare(base.peek().getKey(), changes.peek().getKey());
+                        if (comparison < 0) {
+                            return base.next();
+                        } else if (comparison == 0) {
+                            base.next();
+                        }
+                    }
+                    Map.Entry<String, String> change = changes.next();
+                    if (!TOMBSTONE.equals(change.getValue())) {
+                        return change;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private long copyLogTail(long from) throws IOException {
+        FileOutputStream out = new FileOutputStream(compactionFile, true);
+        try {
+            long lines = 0L;
+            if (indexFile.exists()) {
+                FileInputStream in = new FileInputStream(indexFile);
+                try {
+                    FileChannel source = in.getChannel();
+                    FileChannel target = out.getChannel();
+                    ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                    long position = from;
+                    while (source.read(buffer, position) > 0) {
+                        buffer.flip();
+                        position = position + buffer.remaining();
+                        for (int i = buffer.position(); i < buffer.limit(); i++) {
+                            if (buffer.get(i) == '\n') {
+                                lines = lines + 1;
+                            }
+                        }
+                        while (buffer.hasRemaining()) {
+                            target.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            out.getFD().sync();
+            return lines;
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteCompactionFiles() {
+        if (compactionFile.exists()) {
+            compactionFile.delete();
+        }
+        if (snapshotCompactionFile.exists()) {
+            snapshotCompactionFile.delete();
+        }
+    }
+
+    private Iterator<Map.Entry<String, String>> entries() {
+        final Generation current = generation;
+        Iterator<Map.Entry<String, String>> changes = Iterators.filter(current.overlay.iterator(),
+                new Predicate<Map.Entry<String, String>>() {
+                    @Override
+                    public boolean apply(Map.Entry<String, String> entry) {
+                        return !TOMBSTONE.equals(entry.getValue());
+                    }
+                });
+        if (current.snapshot == null) {
+            return changes;
+        }
+        Iterator<Map.Entry<String, String>> unchanged = Iterators.filter(current.snapshot.iterator(),
+                new Predicate<Map.Entry<String, String>>() {
+                    @Override
+                    public boolean apply(Map.Entry<String, String> entry) {
+                        return !current.overlay.containsKey(entry.getKey());
+                    }
+                });
+        return Iterators.concat(unchanged, changes);
+    }
+
+    /**
+     * A read-only, weakly consistent view over the index entries.
+     */
+    private final class IndexView extends AbstractMap<String, String> {
+
+        @Override
+        public String get(Object key) {
+            return (key instanceof String) ? Index.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(liveEntries.get(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return Iterators.unmodifiableIterator(entries());
+                }
+
+                @Override
+                public int size() {
+                    return IndexView.this.size();
+                }
+            };
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * Persistent formats of the index of a blob store.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions
+ */
+public enum IndexFormat {
+
+    /**
+     * A text log of <code>key => sha1</code> lines, entirely loaded in memory when a store is opened.
+     */
+    TEXT,
+
+    /**
+     * A memory-mapped binary file of sorted keys and raw SHA1 digests, plus a text log of the
+     * entries changed since it was last compacted. Opening a store only replays that log,
+     * and lookups go straight to the mapped file.
+     * <p/>
+     * Existing text indexes are migrated when the store is opened, and a store keeps its binary
+     * index once it has one. Keys are limited to 65535 UTF-8 bytes.
+     */
+    BINARY
+}
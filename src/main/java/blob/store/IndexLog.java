@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * An append-only log of index records with group commit.
+ * <p/>
+ * The log keeps a single file channel open. Records from concurrent callers are queued,
+ * and whichever caller gets to commit first writes (and depending on the durability level,
+ * forces) the whole queue at once on behalf of the others.
+ * <p/>
+ * When a commit fails, the log is truncated back to its previous size and every record
+ * of the failed batch is reported as failed to its caller.
+ *
+ * @author Julien Ponge
+ * @see blob.store.Durability
+ */
+final class IndexLog implements Closeable {
+
+    private final File file;
+    private final Durability durability;
+    private final Object commitLock = new Object();
+    private final List<Record> pending = new ArrayList<Record>();
+    private FileChannel channel;
+
+    private static final class Record {
+        final byte[] bytes;
+        boolean done;
+        IOException failure;
+
+        Record(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    IndexLog(File file, Durability durability) {
+        this.file = file;
+        this.durability = durability;
+    }
+
+    /**
+     * Cuts the record that a crash may have left half-written at the end of a log, so that the
+     * log can be replayed and appended to again. Records end with a line feed, and only the
+     * bytes after the last one are read.
+     *
+     * @param file the log file
+     * @return <code>true</code> if a torn record was cut
+     * @throws IOException when the log cannot be read or truncated
+     */
+    static boolean truncateTornRecord(File file) throws IOException {
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        try {
+            long length = log.length();
+            byte[] buffer = new byte[4096];
+            long end = length;
+            while (end > 0L) {
+                int count = (int) Math.min(buffer.length, end);
+                log.seek(end - count);
+                log.readFully(buffer, 0, count);
+                int i = count - 1;
+                while (i >= 0 && buffer[i] != '\n') {
+                    i = i - 1;
+                }
+                if (i >= 0) {
+                    end = end - count + i + 1;
+                    break;
+                }
+                end = end - count;
+            }
+            if (end < length) {
+                log.setLength(end);
+                return true;
+            }
+            return false;
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Appends a record, and returns once it has been committed.
+     *
+     * @param bytes the record bytes
+     * @throws IOException when the batch containing the record could not be committed
+     */
+    void append(byte[] bytes) throws IOException {
+        Record record = new Record(bytes);
+        if (durability == Durability.PER_OPERATION) {
+            synchronized (commitLock) {
+                commit(singletonList(record));
+            }
+        } else {
+            synchronized (pending) {
+                pending.add(record);
+            }
+            synchronized (commitLock) {
+                if (!record.done) {
+                    List<Record> batch;
+                    synchronized (pending) {
+                        batch = new ArrayList<Record>(pending);
+                        pending.clear();
+                    }
+                    commit(batch);
+                }
+            }
+        }
+        if (record.failure != null) {
+            throw new IOException("Could not append to " + file, record.failure);
+        }
+    }
+
+    private void commit(List<Record> batch) {
+        int size = 0;
+        for (Record record : batch) {
+            size = size + record.bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Record record : batch) {
+            buffer.put(record.bytes);
+        }
+        buffer.flip();
+
+        IOException failure = null;
+        long previousSize = -1L;
+        try {
+            ensureOpen();
+            previousSize = channel.size();
+            write(buffer);
+            if (durability != Durability.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+            rollback(previousSize);
+        }
+        for (Record record : batch) {
+            record.failure = failure;
+            record.done = true;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            channel = new FileOutputStream(file, true).getChannel();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void rollback(long previousSize) {
+        if (channel != null && previousSize >= 0L) {
+            try {
+                channel.truncate(previousSize);
+            } catch (IOException ignored) {
+                // Best effort, there is nothing more we can do
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying channel. The log re-opens it on the next append.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } finally {
+                    channel = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * A read-only, memory-mapped binary index file.
+ * <p/>
+ * The file starts with a header (magic number, version, entry count and offset table position),
+ * followed by the entries sorted by key, and ends with a table of entry offsets. Each entry is
+ * made of the key length as an unsigned short, the UTF-8 key bytes, and the raw 20 bytes SHA1.
+ * Keys are sorted by their UTF-8 bytes, which is also the order of their code points.
+ * <p/>
+ * The file is mapped in windows of 1GB that overlap by the size of the largest possible entry,
+ * so that any entry can be read from the window where it starts. Lookups are binary searches
+ * straight over the mapping, so opening a snapshot does not depend on its size.
+ *
+ * @author Julien Ponge
+ * @see blob.store.Index
+ */
+final class IndexSnapshot {
+
+    static final String FILENAME = "index.bin";
+    static final int MAX_KEY_LENGTH = 0xffff;
+
+    /**
+     * Orders keys like their UTF-8 bytes, that is, by code points.
+     */
+    static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int ca = a.codePointAt(i);
+                int cb = b.codePointAt(j);
+                if (ca != cb) {
+                    return ca - cb;
+                }
+                i = i + Character.charCount(ca);
+                j = j + Character.charCount(cb);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    private static final int MAGIC = 0x424c4958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int MAX_ENTRY_SIZE = 2 + MAX_KEY_LENGTH + Sha1.LENGTH;
+
+    private final ByteBuffer[] windows;
+    private final long count;
+    private final long offsetsPosition;
+
+    private IndexSnapshot(ByteBuffer[] windows, long count, long offsetsPosition) {
+        this.windows = windows;
+        this.count = count;
+        this.offsetsPosition = offsetsPosition;
+    }
+
+    static IndexSnapshot open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Truncated binary index " + file);
+            }
+            int windowCount = (int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+            ByteBuffer[] windows = new ByteBuffer[windowCount];
+            for (int i = 0; i < windowCount; i++) {
+                long start = i * WINDOW_SIZE;
+                long size = Math.min(length - start, WINDOW_SIZE + MAX_ENTRY_SIZE);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                windows[i] = window;
+            }
+            ByteBuffer header = windows[0];
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a binary index " + file);
+            }
+            long count = header.getLong(8);
+            long offsetsPosition = header.getLong(16);
+            if (count < 0 || offsetsPosition < HEADER_SIZE || offsetsPosition + 8 * count != length) {
+                throw new IOException("Corrupt binary index " + file);
+            }
+            return new IndexSnapshot(windows, count, offsetsPosition);
+        } finally {
+            // The mappings stay valid once the channel has been closed
+            randomAccessFile.close();
+        }
+    }
+
+    long size() {
+        return count;
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param key the key
+     * @return the hexadecimal SHA1, or <code>null</code> if the key is not in the snapshot
+     */
+    String get(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        long position = find(keyBytes);
+        return (position < 0) ? null : sha1At(position);
+    }
+
+    private long find(byte[] key) {
+        long low = 0L;
+        long high = count - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long position = entryPosition(middle);
+            int comparison = compare(key, position);
+            if (comparison > 0) {
+                low = middle + 1;
+            } else if (comparison < 0) {
+                high = middle - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Finds the first entry whose key is not lower than a key.
+     *
+     * @param key the key
+     * @return the entry number, or the entry count if all keys are lower
+     */
+    private long lowerBound(byte[] key) {
+        long low = 0L;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (compare(key, entryPosition(middle)) > 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long entryPosition(long entry) {
+        long position = offsetsPosition + 8 * entry;
+        return window(position).getLong(local(position));
+    }
+
+    private int compare(byte[] key, long position) {
+        ByteBuffer window = window(position);
+        int local = local(position);
+        int length = window.getShort(local) & 0xffff;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int a = key[i] & 0xff;
+            int b = window.get(local + 2 + i) & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return key.length - length;
+    }
+
+    private String keyAt(long position) {
+        ByteBuffer window = window(position);
+        int local = local(position);
+        byte[] key = new byte[window.getShort(local) & 0xffff];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = window.get(local + 2 + i);
+        }
+        return new String(key, UTF_8);
+    }
+
+    private String sha1At(long position) {
+        ByteBuffer window = window(position);
+        int local = local(position);
+        int start = local + 2 + (window.getShort(local) & 0xffff);
+        byte[] sha1 = new byte[Sha1.LENGTH];
+        for (int i = 0; i < Sha1.LENGTH; i++) {
+            sha1[i] = window.get(start + i);
+        }
+        return Sha1.toHex(sha1, 0);
+    }
+
+    private ByteBuffer window(long position) {
+        return windows[(int) (position / WINDOW_SIZE)];
+    }
+
+    private int local(long position) {
+        return (int) (position % WINDOW_SIZE);
+    }
+
+    /**
+     * Iterates over the entries, in key order.
+     */
+    Iterator<Map.Entry<String, String>> iterator() {
+        return iterator(0L);
+    }
+
+    /**
+     * Iterates over the entries whose key is not lower than a key, in key order.
+     * The first entry is found with a binary search.
+     *
+     * @param from the lowest key
+     */
+    Iterator<Map.Entry<String, String>> iterator(String from) {
+        return iterator(lowerBound(from.getBytes(UTF_8)));
+    }
+
+    private Iterator<Map.Entry<String, String>> iterator(final long first) {
+        return new AbstractIterator<Map.Entry<String, String>>() {
+            long entry = first;
+
+            @Override
+            protected Map.Entry<String, String> computeNext() {
+                if (entry >= count) {
+                    return endOfData();
+                }
+                long position = entryPosition(entry);
+                entry = entry + 1;
+                return Maps.immutableEntry(keyAt(position), sha1At(position));
+            }
+        };
+    }
+
+    /**
+     * Iterates over the SHA1 of the entries, without decoding their keys.
+     */
+    Iterator<String> digests() {
+        return new AbstractIterator<String>() {
+            long entry = 0L;
+
+            @Override
+            protected String computeNext() {
+                if (entry >= count) {
+                    return endOfData();
+                }
+                long position = entryPosition(entry);
+                entry = entry + 1;
+                return sha1At(position);
+            }
+        };
+    }
+
+    /**
+     * Writes a binary index file.
+     *
+     * @param file    the file to write
+     * @param entries the entries, sorted by <code>KEY_ORDER</code>
+     * @throws IOException on write errors
+     */
+    static void write(File file, Iterator<Map.Entry<String, String>> entries) throws IOException {
+        File offsetsFile = new File(file.getPath() + ".offsets");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+            long count = 0L;
+            long position = HEADER_SIZE;
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.write(new byte[HEADER_SIZE]);
+                byte[] sha1 = new byte[Sha1.LENGTH];
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> entry = entries.next();
+                    byte[] key = entry.getKey().getBytes(UTF_8);
+                    if (key.length > MAX_KEY_LENGTH) {
+                        throw new IOException("Key too long for a binary index: " + entry.getKey());
+                    }
+                    Sha1.toBytes(entry.getValue(), sha1, 0);
+                    data.writeShort(key.length);
+                    data.write(key);
+                    data.write(sha1);
+                    offsets.writeLong(position);
+                    position = position + 2 + key.length + Sha1.LENGTH;
+                    count = count + 1;
+                }
+                data.flush();
+            } finally {
+                offsets.close();
+            }
+            appendFile(out.getChannel(), offsetsFile);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(position);
+            header.flip();
+            out.getChannel().write(header, 0L);
+            out.getFD().sync();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid SHA1 in the index", e);
+        } finally {
+            out.close();
+            offsetsFile.delete();
+        }
+    }
+
+    private static void appendFile(FileChannel target, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            long position = 0L;
+            while (position < size) {
+                position = position + source.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Exports the metrics of a store as the attributes of a JMX MBean, so that they can be graphed
+ * by any JMX console or collector.
+ * <p/>
+ * Each counter is an attribute, like <code>BytesIn</code>. Each timer gives a count, a mean, a
+ * maximum and percentiles in microseconds, like <code>PutCount</code> or <code>PutP99Micros</code>.
+ * Gauges report the key count, the compression ratio, the deduplication ratio and the read
+ * cache hit rate.
+ *
+ * @author Julien Ponge
+ * @see blob.store.InMemoryMetrics
+ */
+public final class JmxMetrics implements DynamicMBean {
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"P50", "P90", "P99", "P999"};
+
+    private final BlobStore store;
+    private final InMemoryMetrics metrics;
+    private final Map<String, String> attributeTypes = new LinkedHashMap<String, String>();
+
+    /**
+     * Creates an MBean for the metrics of a store.
+     *
+     * @param store   the store
+     * @param metrics the metrics that the store was opened with
+     */
+    public JmxMetrics(BlobStore store, InMemoryMetrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+        for (Metrics.Counter counter : Metrics.Counter.values()) {
+            attributeTypes.put(camelCase(counter.name()), "long");
+        }
+        for (Metrics.Timer timer : Metrics.Timer.values()) {
+            String prefix = camelCase(timer.name());
+            attributeTypes.put(prefix + "Count", "long");
+            attributeTypes.put(prefix + "MeanMicros", "double");
+            attributeTypes.put(prefix + "MaxMicros", "double");
+            for (String percentile : PERCENTILE_NAMES) {
+                attributeTypes.put(prefix + percentile + "Micros", "double");
+            }
+        }
+        attributeTypes.put("Keys", "int");
+        attributeTypes.put("CompressionRatio", "double");
+        attributeTypes.put("DeduplicationRatio", "double");
+        attributeTypes.put("CacheHitRate", "double");
+    }
+
+    /**
+     * Registers the metrics of a store with the platform MBean server.
+     *
+     * @param name    the MBean name, like <code>blob.store:type=Metrics,name=uploads</code>
+     * @param store   the store
+     * @param metrics the metrics that the store was opened with
+     * @return the MBean name, to unregister it once the store gets closed
+     * @throws BlobStoreException if the MBean cannot be registered
+     */
+    public static ObjectName register(String name, BlobStore store, InMemoryMetrics metrics) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetrics(store, metrics), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    /**
+     * Unregisters an MBean from the platform MBean server.
+     *
+     * @param name the MBean name
+     * @throws BlobStoreException if the MBean cannot be unregistered
+     */
+    public static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            throw new BlobStoreException(e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (!attributeTypes.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        if ("Keys".equals(attribute)) {
+            return store.getIndex().size();
+        } else if ("CompressionRatio".equals(attribute)) {
+            return ratio(metrics.getCount(Metrics.Counter.BYTES_WRITTEN), metrics.getCount(Metrics.Counter.BYTES_IN));
+        } else if ("DeduplicationRatio".equals(attribute)) {
+            long deduplicated = metrics.getCount(Metrics.Counter.DEDUPLICATED_BLOBS);
+            return ratio(deduplicated, deduplicated + metrics.getCount(Metrics.Counter.STORED_BLOBS));
+        } else if ("CacheHitRate".equals(attribute)) {
+            return store.getCacheStats().hitRate();
+        }
+        for (Metrics.Counter counter : Metrics.Counter.values()) {
+            if (attribute.equals(camelCase(counter.name()))) {
+                return metrics.getCount(counter);
+            }
+        }
+        for (Metrics.Timer timer : Metrics.Timer.values()) {
+            String prefix = camelCase(timer.name());
+            if (attribute.startsWith(prefix)) {
+                return timerAttribute(metrics.getHistogram(timer), attribute.substring(prefix.length()));
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object timerAttribute(LatencyHistogram histogram, String suffix) throws AttributeNotFoundException {
+        if ("Count".equals(suffix)) {
+            return histogram.getCount();
+        } else if ("MeanMicros".equals(suffix)) {
+            return histogram.getMean() / 1000.0;
+        } else if ("MaxMicros".equals(suffix)) {
+            return histogram.getMax() / 1000.0;
+        }
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (suffix.equals(PERCENTILE_NAMES[i] + "Micros")) {
+                return histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0;
+            }
+        }
+        throw new AttributeNotFoundException(suffix);
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return (denominator == 0L) ? 0.0 : (double) numerator / denominator;
+    }
+
+    private static String camelCase(String constant) {
+        StringBuilder name = new StringBuilder();
+        for (String word : constant.split("_")) {
+            name.append(word.charAt(0)).append(word.substring(1).toLowerCase(Locale.ENGLISH));
+        }
+        return name.toString();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+                // Unknown attributes are left out, as the DynamicMBean contract says
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, String> attribute : attributeTypes.entrySet()) {
+            attributes.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue(), attribute.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Blob store metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+}
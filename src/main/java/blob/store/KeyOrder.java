@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * The keys of a <code>KeyTable</code>, in <code>IndexSnapshot.KEY_ORDER</code>.
+ * <p/>
+ * Most keys live in an immutable block of UTF-8 bytes packed one after another, with the offset
+ * of each key, so that they cost little more than their bytes. Keys added since the block was
+ * built go to a concurrent skip list. Both get merged when iterating, and keys removed from the
+ * table are only dropped from the block when it gets rebuilt, so callers look each key up and
+ * skip the missing ones.
+ * <p/>
+ * The order is built from the table on the first iteration, so that tables which are never
+ * iterated in order do not pay for it. It should be rebuilt once the changes since the last build
+ * pass an eighth of its keys.
+ *
+ * @author Julien Ponge
+ * @see blob.store.Index
+ */
+final class KeyOrder {
+
+    private static final int REBUILD_MIN_CHANGES = 4096;
+
+    private volatile State state = new State(null, new ConcurrentSkipListSet<String>(IndexSnapshot.KEY_ORDER));
+    private volatile boolean recording;
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * A block, or <code>null</code> until the order is first built, and the keys added since.
+     */
+    private static final class State {
+        final Block block;
+        final ConcurrentSkipListSet<String> recent;
+
+        State(Block block, ConcurrentSkipListSet<String> recent) {
+            this.block = block;
+            this.recent = recent;
+        }
+    }
+
+    /**
+     * Records that a key has been added to the table, after the table has been updated.
+     */
+    void added(String key) {
+        if (recording) {
+            state.recent.add(key);
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a key has been removed from the table, after the table has been updated.
+     */
+    void removed(String key) {
+        if (recording) {
+            state.recent.remove(key);
+            changes.incrementAndGet();
+        }
+    }
+
+    boolean needsRebuild() {
+        Block block = state.block;
+        long count = changes.get();
+        return block != null && count >= REBUILD_MIN_CHANGES && count > block.size() / 8;
+    }
+
+    /**
+     * Iterates over the keys not lower than a key. The iteration is weakly consistent with
+     * concurrent updates, and may return keys that have been removed from the table.
+     *
+     * @param table the table whose keys are ordered
+     * @param from  the lowest key
+     */
+    Iterator<String> iterator(KeyTable table, String from) {
+        State current = state;
+        if (current.block == null) {
+            current = build(table);
+        }
+        return merge(current.block.iterator(from), current.recent.tailSet(from, true).iterator());
+    }
+
+    private synchronized State build(KeyTable table) {
+        if (state.block == null) {
+            // Keys added while the table is copied get recorded, so that none is missed
+            recording = true;
+            List<String> keys = new ArrayList<String>();
+            Iterator<Map.Entry<String, String>> entries = table.iterator();
+            while (entries.hasNext()) {
+                keys.add(entries.next().getKey());
+            }
+            Collections.sort(keys, IndexSnapshot.KEY_ORDER);
+            state = new State(Block.of(keys.iterator()), state.recent);
+        }
+        return state;
+    }
+
+    /**
+     * Merges the recently added keys into a new block, dropping the keys removed from the table.
+     * Updates proceed while the block is built, and are only excluded while the keys added in the
+     * meantime are carried over, so that iterations never see a key move between both places.
+     *
+     * @param table   the table whose keys are ordered
+     * @param updates a lock excluding the updates of the table
+     */
+    synchronized void rebuild(KeyTable table, Lock updates) {
+        State current = state;
+        if (current.block == null) {
+            return;
+        }
+        long merged = changes.get();
+        List<String> live = new ArrayList<String>();
+        Iterator<String> keys = merge(current.block.iterator(""), current.recent.iterator());
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (table.containsKey(key)) {
+                live.add(key);
+            }
+        }
+        Block next = Block.of(live.iterator());
+        updates.lock();
+        try {
+            ConcurrentSkipListSet<String> recent = new ConcurrentSkipListSet<String>(IndexSnapshot.KEY_ORDER);
+            for (String key : current.recent) {
+                if (table.containsKey(key) && !next.contains(key)) {
+                    recent.add(key);
+                }
+            }
+            state = new State(next, recent);
+            changes.addAndGet(-merged);
+        } finally {
+            updates.unlock();
+        }
+    }
+
+    private static Iterator<String> merge(Iterator<String> first, Iterator<String> second) {
+        final PeekingIterator<String> a = Iterators.peekingIterator(first);
+        final PeekingIterator<String> b = Iterators.peekingIterator(second);
+        return new AbstractIterator<String>() {
+            @Override
+            protected String computeNext() {
+                if (!a.hasNext()) {
+                    return b.hasNext() ? b.next() : endOfData();
+                }
+                if (!b.hasNext()) {
+                    return a.next();
+                }
+                int order = IndexSnapshot.KEY_ORDER.compare(a.peek(), b.peek());
+                if (order == 0) {
+                    b.next();
+                }
+                return (order <= 0) ? a.next() : b.next();
+            }
+        };
+    }
+
+    /**
+     * Sorted keys packed as UTF-8 bytes, which compare like the keys themselves.
+     */
+    private static final class Block {
+        final byte[] bytes;
+        final int[] offsets;
+
+        private Block(byte[] bytes, int[] offsets) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+        }
+
+        static Block of(Iterator<String> sortedKeys) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int[] offsets = new int[16];
+            int size = 0;
+            while (sortedKeys.hasNext()) {
+                byte[] key = sortedKeys.next().getBytes(UTF_8);
+                if (size + 1 == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[size] = out.size();
+                out.write(key, 0, key.length);
+                size = size + 1;
+            }
+            offsets[size] = out.size();
+            return new Block(out.toByteArray(), Arrays.copyOf(offsets, size + 1));
+        }
+
+        int size() {
+            return offsets.length - 1;
+        }
+
+        boolean contains(String key) {
+            byte[] bytes = key.getBytes(UTF_8);
+            int index = lowerBound(bytes);
+            return index < size() && compare(index, bytes) == 0;
+        }
+
+        Iterator<String> iterator(String from) {
+            final int start = lowerBound(from.getBytes(UTF_8));
+            return new AbstractIterator<String>() {
+                int index = start;
+
+                @Override
+                protected String computeNext() {
+                    if (index == size()) {
+                        return endOfData();
+                    }
+                    String key = new String(bytes, offsets[index], offsets[index + 1] - offsets[index], UTF_8);
+                    index = index + 1;
+                    return key;
+                }
+            };
+        }
+
+        private int lowerBound(byte[] key) {
+            int low = 0;
+            int high = size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private int compare(int index, byte[] key) {
+            int offset = offsets[index];
+            int length = offsets[index + 1] - offset;
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int order = (bytes[offset + i] & 0xff) - (key[i] & 0xff);
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return length - key.length;
+        }
+    }
+}
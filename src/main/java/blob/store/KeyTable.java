@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * A compact, concurrent table from keys to SHA1 digests.
+ * <p/>
+ * Entries are not objects: keys are stored as UTF-8 bytes and digests as raw 20 bytes values,
+ * packed in large byte array chunks. Each segment is an open-addressing hash table with linear
+ * probing, made of two primitive arrays holding the key hash codes and the entry addresses in the
+ * chunks. The whole table amounts to a handful of large arrays, whatever the number of entries.
+ * <p/>
+ * A value can also be the empty string, which the index uses to record tombstones.
+ * <p/>
+ * Segments are guarded by read / write locks. Iteration is weakly consistent: each segment is
+ * copied when the iteration reaches it.
+ *
+ * @author Julien Ponge
+ * @see blob.store.Index
+ */
+final class KeyTable {
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final long EMPTY = -1L;
+    private static final byte DIGEST = 1;
+    private static final byte TOMBSTONE = 0;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    KeyTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private KeyTable(Segment[] copies) {
+        System.arraycopy(copies, 0, segments, 0, SEGMENTS);
+    }
+
+    String get(String key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(hash, key.getBytes(UTF_8));
+    }
+
+    boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    void put(String key, String sha1) {
+        if (sha1.length() > 0 && !Sha1.isValid(sha1)) {
+            throw new IllegalArgumentException("Not a SHA1 digest: " + sha1);
+        }
+        int hash = hash(key);
+        segmentFor(hash).put(hash, key.getBytes(UTF_8), sha1);
+    }
+
+    void remove(String key) {
+        int hash = hash(key);
+        segmentFor(hash).remove(hash, key.getBytes(UTF_8));
+    }
+
+    long size() {
+        long size = 0L;
+        for (Segment segment : segments) {
+            size = size + segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Approximates the number of bytes held by the table arrays.
+     */
+    long footprint() {
+        long footprint = 0L;
+        for (Segment segment : segments) {
+            footprint = footprint + segment.footprint();
+        }
+        return footprint;
+    }
+
+    /**
+     * Makes a point-in-time copy of this table.
+     */
+    KeyTable copy() {
+        Segment[] copies = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            copies[i] = segments[i].copy();
+        }
+        return new KeyTable(copies);
+    }
+
+    Iterator<Map.Entry<String, String>> iterator() {
+        return new AbstractIterator<Map.Entry<String, String>>() {
+            int segment = 0;
+            Iterator<Map.Entry<String, String>> current = null;
+
+            @Override
+            protected Map.Entry<String, String> computeNext() {
+                while (current == null || !current.hasNext()) {
+                    if (segment == SEGMENTS) {
+                        return endOfData();
+                    }
+                    current = segments[segment].entries().iterator();
+                    segment = segment + 1;
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private static int hash(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash = hash ^ (hash >>> 7) ^ (hash >>> 4);
+        return hash * 0x9e3779b9;
+    }
+
+    /**
+     * A hash table segment. Entries are laid out in chunks as an int key length, the key bytes,
+     * a digest / tombstone flag byte and 20 digest bytes. An address is a chunk index in the
+     * upper 32 bits and an offset in the lower 32 bits.
+     */
+    private static final class Segment {
+
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        int[] hashes;
+        long[] addresses;
+        int size;
+        List<byte[]> chunks;
+        int chunkOffset;
+        long liveBytes;
+        long garbageBytes;
+
+        Segment() {
+            hashes = new int[INITIAL_CAPACITY];
+            addresses = new long[INITIAL_CAPACITY];
+            Arrays.fill(addresses, EMPTY);
+            chunks = new ArrayList<byte[]>();
+            chunkOffset = 0;
+        }
+
+        String get(int hash, byte[] key) {
+            lock.readLock().lock();
+            try {
+                int slot = find(hash, key);
+                return (slot < 0) ? null : valueAt(addresses[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(int hash, byte[] key, String sha1) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(hash, key);
+                if (slot >= 0) {
+                    writeValue(addresses[slot], sha1);
+                    return;
+                }
+                if ((size + 1) * 4L > addresses.length * 3L) {
+                    resize(addresses.length * 2);
+                }
+                long address = allocate(key.length);
+                byte[] chunk = chunks.get(chunkIndex(address));
+                int offset = chunkOffset(address);
+                writeInt(chunk, offset, key.length);
+                System.arraycopy(key, 0, chunk, offset + 4, key.length);
+                writeValue(address, sha1);
+
+                int mask = addresses.length - 1;
+                slot = hash & mask;
+                while (addresses[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = hash;
+                addresses[slot] = address;
+                size = size + 1;
+                liveBytes = liveBytes + entrySize(key.length);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(int hash, byte[] key) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0) {
+                    return;
+                }
+                long freed = entrySize(key.length);
+                liveBytes = liveBytes - freed;
+                garbageBytes = garbageBytes + freed;
+                size = size - 1;
+                shiftBackFrom(slot);
+                if (garbageBytes > CHUNK_SIZE && garbageBytes > liveBytes) {
+                    compactChunks();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long footprint() {
+            lock.readLock().lock();
+            try {
+                return 4L * hashes.length + 8L * addresses.length + (long) CHUNK_SIZE * chunks.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Segment copy() {
+            lock.readLock().lock();
+            try {
+                Segment copy = new Segment();
+                copy.hashes = hashes.clone();
+                copy.addresses = addresses.clone();
+                copy.size = size;
+                copy.chunks = new ArrayList<byte[]>(chunks.size());
+                for (byte[] chunk : chunks) {
+                    copy.chunks.add(chunk.clone());
+                }
+                copy.chunkOffset = chunkOffset;
+                copy.liveBytes = liveBytes;
+                copy.garbageBytes = garbageBytes;
+                return copy;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<Map.Entry<String, String>> entries() {
+            lock.readLock().lock();
+            try {
+                List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(size);
+                for (long address : addresses) {
+                    if (address != EMPTY) {
+                        entries.add(Maps.immutableEntry(keyAt(address), valueAt(address)));
+                    }
+                }
+                return entries;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private int find(int hash, byte[] key) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != EMPTY) {
+                if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void shiftBackFrom(int slot) {
+            int mask = addresses.length - 1;
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (addresses[next] == EMPTY) {
+                    break;
+                }
+                int home = hashes[next] & mask;
+                boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+                if (movable) {
+                    hashes[hole] = hashes[next];
+                    addresses[hole] = addresses[next];
+                    hole = next;
+                }
+            }
+            addresses[hole] = EMPTY;
+        }
+
+        private void resize(int capacity) {
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            hashes = new int[capacity];
+            addresses = new long[capacity];
+            Arrays.fill(addresses, EMPTY);
+            int mask = capacity - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != EMPTY) {
+                    int slot = oldHashes[i] & mask;
+                    while (addresses[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes[slot] = oldHashes[i];
+                    addresses[slot] = oldAddresses[i];
+                }
+            }
+        }
+
+        private void compactChunks() {
+            List<byte[]> oldChunks = chunks;
+            chunks = new ArrayList<byte[]>();
+            chunkOffset = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] != EMPTY) {
+                    byte[] oldChunk = oldChunks.get(chunkIndex(addresses[i]));
+                    int oldOffset = chunkOffset(addresses[i]);
+                    int length = entrySize(readInt(oldChunk, oldOffset));
+                    long address = allocate(length - entrySize(0));
+                    System.arraycopy(oldChunk, oldOffset, chunks.get(chunkIndex(address)), chunkOffset(address), length);
+                    addresses[i] = address;
+                }
+            }
+            garbageBytes = 0L;
+        }
+
+        private long allocate(int keyLength) {
+            int length = entrySize(keyLength);
+            if (chunks.isEmpty() || chunkOffset + length > chunks.get(chunks.size() - 1).length) {
+                chunks.add(new byte[Math.max(CHUNK_SIZE, length)]);
+                chunkOffset = 0;
+            }
+            long address = ((long) (chunks.size() - 1) << 32) | chunkOffset;
+            chunkOffset = chunkOffset + length;
+            return address;
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            byte[] chunk = chunks.get(chunkIndex(address));
+            int offset = chunkOffset(address);
+            if (readInt(chunk, offset) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (chunk[offset + 4 + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String keyAt(long address) {
+            byte[] chunk = chunks.get(chunkIndex(address));
+            int offset = chunkOffset(address);
+            return new String(chunk, offset + 4, readInt(chunk, offset), UTF_8);
+        }
+
+        private String valueAt(long address) {
+            byte[] chunk = chunks.get(chunkIndex(address));
+            int offset = chunkOffset(address);
+            int flag = offset + 4 + readInt(chunk, offset);
+            return (chunk[flag] == TOMBSTONE) ? "" : Sha1.toHex(chunk, flag + 1);
+        }
+
+        private void writeValue(long address, String sha1) {
+            byte[] chunk = chunks.get(chunkIndex(address));
+            int offset = chunkOffset(address);
+            int flag = offset + 4 + readInt(chunk, offset);
+            if (sha1.length() == 0) {
+                chunk[flag] = TOMBSTONE;
+            } else {
+                Sha1.toBytes(sha1, chunk, flag + 1);
+                chunk[flag] = DIGEST;
+            }
+        }
+    }
+
+    private static int entrySize(int keyLength) {
+        return 4 + keyLength + 1 + Sha1.LENGTH;
+    }
+
+    private static int chunkIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int chunkOffset(long address) {
+        return (int) address;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
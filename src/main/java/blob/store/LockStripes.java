@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed array of locks, where an object is mapped to one lock by its hash code.
+ * <p/>
+ * Two distinct objects may share a stripe, so callers that need two locks at once
+ * must always acquire them in the same order to stay clear of deadlocks.
+ *
+ * @author Julien Ponge
+ */
+final class LockStripes {
+
+    private final Lock[] locks;
+    private final int mask;
+
+    LockStripes(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size = size << 1;
+        }
+        locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    Lock get(Object key) {
+        return locks[smear(key.hashCode()) & mask];
+    }
+
+    /**
+     * Gives the distinct locks of several objects, always in the same order.
+     *
+     * @param keys the objects
+     * @return the locks, which can be acquired in order without deadlocks
+     */
+    List<Lock> getAll(Iterable<?> keys) {
+        boolean[] used = new boolean[locks.length];
+        for (Object key : keys) {
+            used[smear(key.hashCode()) & mask] = true;
+        }
+        List<Lock> result = new ArrayList<Lock>();
+        for (int i = 0; i < locks.length; i++) {
+            if (used[i]) {
+                result.add(locks[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Acquires every stripe in order, to exclude the holders of any single stripe.
+     */
+    void lockAll() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private static int smear(int hash) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java implementation of the LZ4 block format.
+ * <p/>
+ * A block is a sequence of tokens, each made of literals copied as-is, followed by a match
+ * that copies bytes from earlier in the block. The compressor finds matches through a hash
+ * table of 4 bytes sequences, which trades compression ratio for speed.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlockCompressor
+ */
+final class Lz4Block {
+
+    static final int HASH_TABLE_SIZE = 1 << 12;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int SKIP_STRENGTH = 6;
+
+    private Lz4Block() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @param src       the source bytes
+     * @param srcOffset the source offset
+     * @param srcLength the source length
+     * @param dst       the destination, at least <code>maxCompressedLength(srcLength)</code> long from its offset
+     * @param dstOffset the destination offset
+     * @param table     a scratch hash table of <code>HASH_TABLE_SIZE</code> entries
+     * @return the compressed length
+     */
+    static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int[] table) {
+        Arrays.fill(table, -1);
+        int srcEnd = srcOffset + srcLength;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int findLimit = srcEnd - MATCH_FIND_LIMIT;
+        int anchor = srcOffset;
+        int in = srcOffset;
+        int out = dstOffset;
+        int misses = 0;
+
+        while (in < findLimit) {
+            int sequence = readInt(src, in);
+            int slot = hash(sequence);
+            int reference = table[slot];
+            table[slot] = in;
+            if (reference < 0 || in - reference > MAX_DISTANCE || readInt(src, reference) != sequence) {
+                // Skip faster over data that does not compress
+                in = in + 1 + (misses >>> SKIP_STRENGTH);
+                misses = misses + 1;
+                continue;
+            }
+            misses = 0;
+            while (in > anchor && reference > srcOffset && src[in - 1] == src[reference - 1]) {
+                in = in - 1;
+                reference = reference - 1;
+            }
+            int matchLength = MIN_MATCH;
+            while (in + matchLength < matchLimit && src[in + matchLength] == src[reference + matchLength]) {
+                matchLength = matchLength + 1;
+            }
+            out = writeSequence(src, anchor, in - anchor, in - reference, matchLength, dst, out);
+            in = in + matchLength;
+            anchor = in;
+        }
+        out = writeLastLiterals(src, anchor, srcEnd - anchor, dst, out);
+        return out - dstOffset;
+    }
+
+    private static int writeSequence(byte[] src, int literals, int literalLength, int distance, int matchLength,
+                                     byte[] dst, int out) {
+        int tokenPosition = out;
+        out = out + 1;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            out = writeLength(literalLength - 15, dst, out);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literals, dst, out, literalLength);
+        out = out + literalLength;
+        dst[out] = (byte) distance;
+        dst[out + 1] = (byte) (distance >>> 8);
+        out = out + 2;
+        int extraLength = matchLength - MIN_MATCH;
+        if (extraLength >= 15) {
+            token = token | 15;
+            out = writeLength(extraLength - 15, dst, out);
+        } else {
+            token = token | extraLength;
+        }
+        dst[tokenPosition] = (byte) token;
+        return out;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literals, int literalLength, byte[] dst, int out) {
+        if (literalLength >= 15) {
+            dst[out] = (byte) (15 << 4);
+            out = writeLength(literalLength - 15, dst, out + 1);
+        } else {
+            dst[out] = (byte) (literalLength << 4);
+            out = out + 1;
+        }
+        System.arraycopy(src, literals, dst, out, literalLength);
+        return out + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int out) {
+        while (length >= 255) {
+            dst[out] = (byte) 255;
+            out = out + 1;
+            length = length - 255;
+        }
+        dst[out] = (byte) length;
+        return out + 1;
+    }
+
+    /**
+     * Decompresses a block.
+     *
+     * @param src       the compressed bytes
+     * @param srcOffset the compressed bytes offset
+     * @param srcLength the compressed length
+     * @param dst       the destination
+     * @param dstOffset the destination offset
+     * @param dstLength the exact decompressed length
+     * @throws IOException if the block is corrupt
+     */
+    static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+            throws IOException {
+        int srcEnd = srcOffset + srcLength;
+        int dstEnd = dstOffset + dstLength;
+        int in = srcOffset;
+        int out = dstOffset;
+
+        while (true) {
+            check(in < srcEnd);
+            int token = src[in] & 0xff;
+            in = in + 1;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int value;
+                do {
+                    check(in < srcEnd);
+                    value = src[in] & 0xff;
+                    in = in + 1;
+                    literalLength = literalLength + value;
+                } while (value == 255);
+            }
+            check(literalLength <= srcEnd - in && literalLength <= dstEnd - out);
+            System.arraycopy(src, in, dst, out, literalLength);
+            in = in + literalLength;
+            out = out + literalLength;
+            if (in == srcEnd) {
+                break;
+            }
+
+            check(in + 2 <= srcEnd);
+            int distance = (src[in] & 0xff) | ((src[in + 1] & 0xff) << 8);
+            in = in + 2;
+            check(distance > 0 && out - distance >= dstOffset);
+
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int value;
+                do {
+                    check(in < srcEnd);
+                    value = src[in] & 0xff;
+                    in = in + 1;
+                    matchLength = matchLength + value;
+                } while (value == 255);
+            }
+            matchLength = matchLength + MIN_MATCH;
+            check(matchLength <= dstEnd - out);
+            if (distance >= matchLength) {
+                System.arraycopy(dst, out - distance, dst, out, matchLength);
+            } else {
+                // Overlapping matches repeat the last bytes, so they must be copied one by one
+                for (int i = 0; i < matchLength; i++) {
+                    dst[out + i] = dst[out - distance + i];
+                }
+            }
+            out = out + matchLength;
+        }
+        check(out == dstEnd);
+    }
+
+    private static void check(boolean condition) throws IOException {
+        if (!condition) {
+            throw new IOException("Corrupt LZ4 block");
+        }
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> 20;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.Closeables;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The list of chunks that make up a chunked blob.
+ * <p/>
+ * A manifest file starts with a magic number, a version and the number of chunks. Each chunk then
+ * takes its length as a 32 bits integer, followed by its raw 20 bytes SHA1.
+ *
+ * @author Julien Ponge
+ * @see blob.store.Chunker
+ */
+final class Manifest {
+
+    static final String DIRECTORY = "manifests";
+
+    private static final int MAGIC = 0x424c4d46;
+    private static final int VERSION = 1;
+
+    private byte[] digests;
+    private int[] lengths;
+    private int size;
+
+    Manifest() {
+        this(16);
+    }
+
+    private Manifest(int capacity) {
+        digests = new byte[capacity * Sha1.LENGTH];
+        lengths = new int[capacity];
+    }
+
+    void add(String sha1, int length) {
+        if (size == lengths.length) {
+            digests = Arrays.copyOf(digests, digests.length * 2);
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        Sha1.toBytes(sha1, digests, size * Sha1.LENGTH);
+        lengths[size] = length;
+        size = size + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String digest(int chunk) {
+        return Sha1.toHex(digests, chunk * Sha1.LENGTH);
+    }
+
+    int length(int chunk) {
+        return lengths[chunk];
+    }
+
+    /**
+     * Writes the manifest, and closes the stream.
+     */
+    void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        boolean threw = true;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(lengths[i]);
+                out.write(digests, i * Sha1.LENGTH, Sha1.LENGTH);
+            }
+            threw = false;
+        } finally {
+            Closeables.close(out, threw);
+        }
+    }
+
+    static Manifest read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid manifest " + file);
+            }
+            int size = in.readInt();
+            if (size < 0 || size > file.length() / (4 + Sha1.LENGTH)) {
+                throw new IOException("Invalid manifest " + file);
+            }
+            Manifest manifest = new Manifest(Math.max(size, 1));
+            for (int i = 0; i < size; i++) {
+                manifest.lengths[i] = in.readInt();
+                if (manifest.lengths[i] < 0) {
+                    throw new IOException("Invalid manifest " + file);
+                }
+                in.readFully(manifest.digests, i * Sha1.LENGTH, Sha1.LENGTH);
+            }
+            manifest.size = size;
+            return manifest;
+        } catch (EOFException e) {
+            throw new IOException("Truncated manifest " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * A service provider interface for the metrics of a blob store.
+ * <p/>
+ * A store reports the latency of its public operations and of their internal phases, and counts
+ * what happens to the data it is given. The default implementation drops everything, while
+ * <code>InMemoryMetrics</code> keeps counters and latency histograms that can be exported with
+ * <code>JmxMetrics</code>. Implementations are called by many threads at once, right on the
+ * paths that they measure, so they should not block.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStoreOptions#metrics(Metrics)
+ * @see blob.store.InMemoryMetrics
+ * @see blob.store.JmxMetrics
+ */
+public abstract class Metrics {
+
+    /**
+     * The timed operations and phases.
+     */
+    public enum Timer {
+
+        /**
+         * A <code>put</code>, from its call to the index update.
+         */
+        PUT,
+
+        /**
+         * A <code>get</code> or a <code>transferTo</code>, until the blob stream is returned or
+         * the transfer ends.
+         */
+        GET,
+
+        /**
+         * A <code>remove</code>.
+         */
+        REMOVE,
+
+        /**
+         * A batch commit.
+         */
+        BATCH,
+
+        /**
+         * Hashing and compressing a blob to a temporary file or to memory.
+         */
+        STAGE,
+
+        /**
+         * Renaming a temporary file to a blob file.
+         */
+        RENAME,
+
+        /**
+         * Appending entries to the index log, including any synchronization to the disk.
+         */
+        INDEX_APPEND,
+
+        /**
+         * Rewriting the index to its live entries.
+         */
+        INDEX_COMPACTION,
+
+        /**
+         * Evicting blobs and their keys to bring a capacity-bounded store back under its capacity.
+         */
+        EVICTION
+    }
+
+    /**
+     * The counted events.
+     */
+    public enum Counter {
+
+        /**
+         * The uncompressed bytes given to <code>put</code>.
+         */
+        BYTES_IN,
+
+        /**
+         * The compressed bytes of new blob files, chunks, manifests and pack entries.
+         */
+        BYTES_WRITTEN,
+
+        /**
+         * The blobs and chunks that got stored.
+         */
+        STORED_BLOBS,
+
+        /**
+         * The blobs and chunks that were already stored, and did not need to be stored again.
+         */
+        DEDUPLICATED_BLOBS,
+
+        /**
+         * The blobs and chunks that got deleted, once they were no longer referenced.
+         */
+        DELETED_BLOBS,
+
+        /**
+         * The temporary files that got deleted instead of becoming blob files.
+         */
+        DISCARDED_TEMP_FILES,
+
+        /**
+         * The keys that got removed to bring a capacity-bounded store back under its capacity.
+         */
+        EVICTED_KEYS
+    }
+
+    private static final Metrics NONE = new Metrics() {
+        @Override
+        public void time(Timer timer, long nanos) {
+        }
+
+        @Override
+        public void count(Counter counter, long delta) {
+        }
+    };
+
+    /**
+     * Gives the metrics that drop everything, which are used by default.
+     *
+     * @return the metrics
+     */
+    public static Metrics none() {
+        return NONE;
+    }
+
+    /**
+     * Records the latency of an operation or phase.
+     *
+     * @param timer the operation or phase
+     * @param nanos its latency in nanoseconds
+     */
+    public abstract void time(Timer timer, long nanos);
+
+    /**
+     * Adds to a counter.
+     *
+     * @param counter the counter
+     * @param delta   the amount to add
+     */
+    public abstract void count(Counter counter, long delta);
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only pack files for small blobs.
+ * <p/>
+ * Packed blobs are appended to segment files as records made of the raw blob SHA1, the stored
+ * length and the stored blob data, which is exactly what a blob file would contain. Once a
+ * segment is full, it is sealed by writing an index file next to it, with the offset and length
+ * of each record. Opening a store loads the index files of sealed segments, and only scans the
+ * last segment.
+ * <p/>
+ * Records of blobs that are no longer referenced become garbage, and segments that are mostly
+ * garbage get repacked: their live records are copied to the current segment, and the segment
+ * files are deleted. Reads only hold a shared lock that repacking takes exclusively before
+ * deleting segments.
+ *
+ * @author Julien Ponge
+ * @see blob.store.PackTable
+ */
+final class PackStore implements Closeable {
+
+    static final String DIRECTORY = "packs";
+
+    private static final String SEGMENT_PREFIX = "pack-";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int RECORD_HEADER_LENGTH = Sha1.LENGTH + 4;
+    private static final int INDEX_ENTRY_LENGTH = Sha1.LENGTH + 8 + 4;
+    private static final double REPACK_GARBAGE_RATIO = 0.5;
+
+    private static final class Segment {
+
+        final int id;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        long size;
+
+        Segment(int id, FileChannel channel, long size) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final PackTable table = new PackTable();
+
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+
+    private final Object appendLock = new Object();
+    private Segment active;
+    private ByteArrayOutputStream activeIndex;
+    private int lastSegmentId;
+
+    private final Object repackLock = new Object();
+
+    PackStore(File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        open();
+    }
+
+    private void open() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : names) {
+            if (name.endsWith(TEMP_SUFFIX)) {
+                new File(directory, name).delete();
+            } else if (isSegmentName(name)) {
+                ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        for (String name : names) {
+            // Repacking deletes a segment before its index
+            if (name.endsWith(INDEX_SUFFIX) && !new File(directory, name.substring(0, name.length() - INDEX_SUFFIX.length())).exists()) {
+                new File(directory, name).delete();
+            }
+        }
+
+        // Later segments hold the latest copy of repacked records
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            Segment segment = openSegment(id);
+            segments.put(id, segment);
+            lastSegmentId = id;
+            File indexFile = indexFile(id);
+            byte[] entries;
+            if (indexFile.exists()) {
+                entries = Files.toByteArray(indexFile);
+            } else {
+                entries = scan(segment);
+                if (i == ids.size() - 1) {
+                    active = segment;
+                    activeIndex = new ByteArrayOutputStream();
+                    activeIndex.write(entries);
+                } else {
+                    writeIndex(id, entries);
+                }
+            }
+            register(id, entries);
+        }
+    }
+
+    private static boolean isSegmentName(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || name.length() == SEGMENT_PREFIX.length()) {
+            return false;
+        }
+        for (int i = SEGMENT_PREFIX.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%s%08d", SEGMENT_PREFIX, id));
+    }
+
+    private File indexFile(int id) {
+        return new File(directory, segmentFile(id).getName() + INDEX_SUFFIX);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        FileChannel channel = new RandomAccessFile(segmentFile(id), "rw").getChannel();
+        return new Segment(id, channel, channel.size());
+    }
+
+    /**
+     * Reads the records of a segment that has no index, and drops a torn record at its end.
+     */
+    private byte[] scan(Segment segment) throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment.id))));
+        long offset = 0L;
+        try {
+            byte[] digest = new byte[Sha1.LENGTH];
+            while (offset + RECORD_HEADER_LENGTH <= segment.size) {
+                in.readFully(digest);
+                int length = in.readInt();
+                if (length < 0 || offset + RECORD_HEADER_LENGTH + length > segment.size) {
+                    break;
+                }
+                ByteStreams.skipFully(in, length);
+                out.write(digest);
+                out.writeLong(offset);
+                out.writeInt(length);
+                offset = offset + RECORD_HEADER_LENGTH + length;
+            }
+        } finally {
+            in.close();
+        }
+        if (offset < segment.size) {
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+        return entries.toByteArray();
+    }
+
+    private void register(int id, byte[] entries) {
+        ByteBuffer buffer = ByteBuffer.wrap(entries);
+        while (buffer.remaining() >= INDEX_ENTRY_LENGTH) {
+            byte[] digest = new byte[Sha1.LENGTH];
+            buffer.get(digest);
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            table.put(digest, new PackTable.Location(id, offset, length));
+        }
+    }
+
+    private void writeIndex(int id, byte[] entries) throws IOException {
+        File temp = new File(directory, indexFile(id).getName() + TEMP_SUFFIX);
+        Files.write(entries, temp);
+        if (!temp.renameTo(indexFile(id))) {
+            throw new IOException("Could not rename " + temp + " to " + indexFile(id));
+        }
+    }
+
+    /**
+     * Forgets the records of unreferenced blobs, which are garbage from then on, and accounts for
+     * the live bytes of each segment.
+     */
+    void dropUnreferenced(BlobTable blobs) {
+        for (byte[] digest : table.digests()) {
+            if (blobs.references(Sha1.toHex(digest, 0)) == 0) {
+                table.remove(digest);
+            } else {
+                PackTable.Location location = table.get(digest);
+                segments.get(location.segment).liveBytes.addAndGet(RECORD_HEADER_LENGTH + location.length);
+            }
+        }
+    }
+
+    List<String> digests() {
+        List<String> digests = new ArrayList<String>();
+        for (byte[] digest : table.digests()) {
+            digests.add(Sha1.toHex(digest, 0));
+        }
+        return digests;
+    }
+
+    boolean contains(String sha1) {
+        return table.get(Sha1.toBytes(sha1)) != null;
+    }
+
+    /**
+     * @return the stored length of a packed blob, or <code>-1</code> if the blob is not packed
+     */
+    long length(String sha1) {
+        PackTable.Location location = table.get(Sha1.toBytes(sha1));
+        return (location != null) ? location.length : -1L;
+    }
+
+    /**
+     * Packs a blob. Callers must make sure that it is not packed already.
+     */
+    void append(String sha1, byte[] data) throws IOException {
+        byte[] digest = Sha1.toBytes(sha1);
+        synchronized (appendLock) {
+            PackTable.Location location = appendRecord(digest, data, 0, data.length);
+            table.put(digest, location);
+            active.liveBytes.addAndGet(RECORD_HEADER_LENGTH + data.length);
+        }
+    }
+
+    private PackTable.Location appendRecord(byte[] digest, byte[] data, int offset, int length) throws IOException {
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (active == null || (active.size > 0 && active.size + recordLength > segmentSize)) {
+            roll();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.put(digest).putInt(length).put(data, offset, length);
+        record.flip();
+        long position = active.size;
+        try {
+            while (record.hasRemaining()) {
+                active.channel.write(record, position + record.position());
+            }
+        } catch (IOException e) {
+            active.channel.truncate(position);
+            throw e;
+        }
+        active.size = position + recordLength;
+        DataOutputStream index = new DataOutputStream(activeIndex);
+        index.write(digest);
+        index.writeLong(position);
+        index.writeInt(length);
+        return new PackTable.Location(active.id, position, length);
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            writeIndex(active.id, activeIndex.toByteArray());
+        } else if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not mkdir " + directory.getAbsolutePath());
+        }
+        Segment segment = openSegment(lastSegmentId + 1);
+        segmentsLock.writeLock().lock();
+        try {
+            segments.put(segment.id, segment);
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        lastSegmentId = segment.id;
+        active = segment;
+        activeIndex = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Opens a packed blob.
+     *
+     * @return the stored blob data, or <code>null</code> if the blob is not packed
+     */
+    InputStream open(String sha1) throws IOException {
+        byte[] digest = Sha1.toBytes(sha1);
+        segmentsLock.readLock().lock();
+        try {
+            PackTable.Location location = table.get(digest);
+            if (location == null) {
+                return null;
+            }
+            byte[] record = readRecord(segments.get(location.segment), location, digest);
+            return new ByteArrayInputStream(record, RECORD_HEADER_LENGTH, location.length);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    private static byte[] readRecord(Segment segment, PackTable.Location location, byte[] digest) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + location.length);
+        while (record.hasRemaining()) {
+            if (segment.channel.read(record, location.offset + record.position()) < 0) {
+                throw new EOFException("Truncated pack record in " + SEGMENT_PREFIX + segment.id);
+            }
+        }
+        byte[] bytes = record.array();
+        for (int i = 0; i < Sha1.LENGTH; i++) {
+            if (bytes[i] != digest[i]) {
+                throw new IOException("Corrupt pack record in " + SEGMENT_PREFIX + segment.id);
+            }
+        }
+        if (record.getInt(Sha1.LENGTH) != location.length) {
+            throw new IOException("Corrupt pack record in " + SEGMENT_PREFIX + segment.id);
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops a packed blob, whose record becomes garbage.
+     *
+     * @return <code>false</code> if the blob was not packed
+     */
+    boolean remove(String sha1) {
+        PackTable.Location location = table.remove(Sha1.toBytes(sha1));
+        if (location == null) {
+            return false;
+        }
+        segmentsLock.readLock().lock();
+        try {
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                segment.liveBytes.addAndGet(-(RECORD_HEADER_LENGTH + location.length));
+            }
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Repacks the sealed segments that are mostly garbage.
+     *
+     * @return the number of repacked segments
+     */
+    int repack() throws IOException {
+        synchronized (repackLock) {
+            List<Segment> candidates = new ArrayList<Segment>();
+            synchronized (appendLock) {
+                segmentsLock.readLock().lock();
+                try {
+                    for (Segment segment : segments.values()) {
+                        if (segment != active && segment.liveBytes.get() < segment.size * (1.0 - REPACK_GARBAGE_RATIO)) {
+                            candidates.add(segment);
+                        }
+                    }
+                } finally {
+                    segmentsLock.readLock().unlock();
+                }
+            }
+            for (Segment segment : candidates) {
+                repack(segment);
+            }
+            return candidates.size();
+        }
+    }
+
+    private void repack(Segment segment) throws IOException {
+        ByteBuffer entries = ByteBuffer.wrap(Files.toByteArray(indexFile(segment.id)));
+        byte[] digest = new byte[Sha1.LENGTH];
+        while (entries.remaining() >= INDEX_ENTRY_LENGTH) {
+            entries.get(digest);
+            long offset = entries.getLong();
+            int length = entries.getInt();
+            PackTable.Location location = table.get(digest);
+            if (location == null || location.segment != segment.id || location.offset != offset) {
+                continue;
+            }
+            byte[] record = readRecord(segment, location, digest);
+            synchronized (appendLock) {
+                PackTable.Location moved = appendRecord(digest, record, RECORD_HEADER_LENGTH, length);
+                // The blob may have been removed meanwhile, in which case the copy is garbage already
+                if (table.replace(digest, segment.id, offset, moved)) {
+                    active.liveBytes.addAndGet(RECORD_HEADER_LENGTH + length);
+                }
+            }
+        }
+
+        segmentsLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        File segmentFile = segmentFile(segment.id);
+        if (!segmentFile.delete()) {
+            throw new IOException("Could not delete " + segmentFile);
+        }
+        indexFile(segment.id).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        segmentsLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                Closeables.closeQuietly(segment.channel);
+            }
+            segments.clear();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+}
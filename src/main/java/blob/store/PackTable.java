@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+/**
+ * The location of packed blobs, keyed by SHA1 digest.
+ * <p/>
+ * Segments, offsets and lengths are kept in primitive arrays indexed by <code>DigestTable</code>
+ * slot.
+ * <p/>
+ * All operations are synchronized.
+ *
+ * @author Julien Ponge
+ * @see blob.store.PackStore
+ * @see blob.store.DigestTable
+ */
+final class PackTable extends DigestTable {
+
+    /**
+     * Where a packed blob lives: a segment, the offset of its record, and its stored length.
+     */
+    static final class Location {
+
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private int[] segments;
+    private long[] offsets;
+    private int[] lengths;
+
+    PackTable() {
+        allocate(capacity());
+    }
+
+    private void allocate(int capacity) {
+        segments = new int[capacity];
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Sets the location of a blob.
+     *
+     * @return the previous location, or <code>null</code>
+     */
+    synchronized Location put(byte[] digest, Location location) {
+        int slot = find(digest);
+        if (slot >= 0) {
+            Location previous = locationAt(slot);
+            set(slot, location);
+            return previous;
+        }
+        set(add(digest), location);
+        return null;
+    }
+
+    /**
+     * Moves a blob, unless it has been removed or moved in the meantime.
+     *
+     * @return <code>true</code> if the blob was still at its expected location
+     */
+    synchronized boolean replace(byte[] digest, int segment, long offset, Location location) {
+        int slot = find(digest);
+        if (slot < 0 || segments[slot] != segment || offsets[slot] != offset) {
+            return false;
+        }
+        set(slot, location);
+        return true;
+    }
+
+    synchronized Location get(byte[] digest) {
+        int slot = find(digest);
+        return (slot < 0) ? null : locationAt(slot);
+    }
+
+    /**
+     * @return the removed location, or <code>null</code>
+     */
+    synchronized Location remove(byte[] digest) {
+        int slot = find(digest);
+        if (slot < 0) {
+            return null;
+        }
+        Location previous = locationAt(slot);
+        free(slot);
+        return previous;
+    }
+
+    /**
+     * @return the raw digests of all packed blobs
+     */
+    synchronized byte[][] digests() {
+        byte[][] result = new byte[size()][];
+        int next = 0;
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (used(slot)) {
+                result[next] = digest(slot);
+                next = next + 1;
+            }
+        }
+        return result;
+    }
+
+    private Location locationAt(int slot) {
+        return new Location(segments[slot], offsets[slot], lengths[slot]);
+    }
+
+    private void set(int slot, Location location) {
+        segments[slot] = location.segment;
+        offsets[slot] = location.offset;
+        lengths[slot] = location.length;
+    }
+
+    @Override
+    void move(int from, int to) {
+        segments[to] = segments[from];
+        offsets[to] = offsets[from];
+        lengths[to] = lengths[from];
+    }
+
+    @Override
+    void resized(int capacity, int[] slots) {
+        int[] oldSegments = segments;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        allocate(capacity);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] >= 0) {
+                segments[slots[i]] = oldSegments[i];
+                offsets[slots[i]] = oldOffsets[i];
+                lengths[slots[i]] = oldLengths[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.util.Collections;
+import java.util.SortedSet;
+
+/**
+ * The outcome of a blob store scrub.
+ *
+ * @author Julien Ponge
+ * @see blob.store.BlobStore#scrub(int, long, boolean)
+ */
+public final class ScrubReport {
+
+    private final long checkedBlobs;
+    private final long checkedBytes;
+    private final SortedSet<String> corruptBlobs;
+    private final SortedSet<String> missingBlobs;
+    private final SortedSet<String> unreferencedBlobs;
+    private final boolean repaired;
+
+    ScrubReport(long checkedBlobs, long checkedBytes, SortedSet<String> corruptBlobs, SortedSet<String> missingBlobs,
+                SortedSet<String> unreferencedBlobs, boolean repaired) {
+        this.checkedBlobs = checkedBlobs;
+        this.checkedBytes = checkedBytes;
+        this.corruptBlobs = Collections.unmodifiableSortedSet(corruptBlobs);
+        this.missingBlobs = Collections.unmodifiableSortedSet(missingBlobs);
+        this.unreferencedBlobs = Collections.unmodifiableSortedSet(unreferencedBlobs);
+        this.repaired = repaired;
+    }
+
+    /**
+     * @return the number of blobs, chunks and manifests whose content got hashed
+     */
+    public long getCheckedBlobs() {
+        return checkedBlobs;
+    }
+
+    /**
+     * @return the number of decompressed bytes that got hashed
+     */
+    public long getCheckedBytes() {
+        return checkedBytes;
+    }
+
+    /**
+     * @return the SHA1 of the blobs that could not be decompressed, or whose content has another SHA1
+     */
+    public SortedSet<String> getCorruptBlobs() {
+        return corruptBlobs;
+    }
+
+    /**
+     * @return the SHA1 of the blobs that keys point to, but that are not stored
+     */
+    public SortedSet<String> getMissingBlobs() {
+        return missingBlobs;
+    }
+
+    /**
+     * @return the SHA1 of the stored blobs that no key or manifest points to
+     */
+    public SortedSet<String> getUnreferencedBlobs() {
+        return unreferencedBlobs;
+    }
+
+    /**
+     * @return whether the keys of corrupt and missing blobs got removed, along with the corrupt
+     *         and unreferenced blobs
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    /**
+     * @return <code>true</code> if nothing was wrong
+     */
+    public boolean isClean() {
+        return corruptBlobs.isEmpty() && missingBlobs.isEmpty() && unreferencedBlobs.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ScrubReport{checkedBlobs=" + checkedBlobs + ", checkedBytes=" + checkedBytes
+                + ", corrupt=" + corruptBlobs.size() + ", missing=" + missingBlobs.size()
+                + ", unreferenced=" + unreferencedBlobs.size() + ", repaired=" + repaired + "}";
+    }
+}
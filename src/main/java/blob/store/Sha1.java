@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import java.util.Arrays;
+
+/**
+ * Conversions between the hexadecimal and the raw forms of SHA1 digests.
+ *
+ * @author Julien Ponge
+ */
+final class Sha1 {
+
+    static final int LENGTH = 20;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (char c = '0'; c <= '9'; c++) {
+            HEX_VALUES[c] = (byte) (c - '0');
+        }
+        for (char c = 'a'; c <= 'f'; c++) {
+            HEX_VALUES[c] = (byte) (c - 'a' + 10);
+            HEX_VALUES[Character.toUpperCase(c)] = (byte) (c - 'a' + 10);
+        }
+    }
+
+    private Sha1() {
+    }
+
+    static boolean isValid(String hex) {
+        if (hex.length() != 2 * LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            if (value(hex.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] toBytes(String hex) {
+        byte[] bytes = new byte[LENGTH];
+        toBytes(hex, bytes, 0);
+        return bytes;
+    }
+
+    static void toBytes(String hex, byte[] target, int offset) {
+        if (hex.length() != 2 * LENGTH) {
+            throw new IllegalArgumentException("Not a SHA1 digest: " + hex);
+        }
+        // Digests get decoded on every blob table lookup, so this validates and decodes in one pass
+        for (int i = 0; i < LENGTH; i++) {
+            int high = value(hex.charAt(2 * i));
+            int low = value(hex.charAt(2 * i + 1));
+            if ((high | low) < 0) {
+                throw new IllegalArgumentException("Not a SHA1 digest: " + hex);
+            }
+            target[offset + i] = (byte) ((high << 4) | low);
+        }
+    }
+
+    private static int value(char c) {
+        return (c < HEX_VALUES.length) ? HEX_VALUES[c] : -1;
+    }
+
+    static String toHex(byte[] bytes, int offset) {
+        char[] chars = new char[2 * LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            int value = bytes[offset + i] & 0xff;
+            chars[2 * i] = HEX_DIGITS[value >>> 4];
+            chars[2 * i + 1] = HEX_DIGITS[value & 0x0f];
+        }
+        return new String(chars);
+    }
+}
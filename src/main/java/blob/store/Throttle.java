@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out the bytes processed by several threads, so that they stay under a rate.
+ *
+ * @author Julien Ponge
+ */
+final class Throttle {
+
+    // Oversleeping is made up for with bursts up to that long, so that small reads reach the rate
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+
+    private final double nanosPerByte;
+    private long next = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the rate, or <code>0</code> for no limit
+     */
+    Throttle(long bytesPerSecond) {
+        nanosPerByte = (bytesPerSecond > 0L) ? 1.0e9 / bytesPerSecond : 0.0;
+    }
+
+    /**
+     * Waits until some bytes can be processed. Threads get their turn in order, and each one
+     * pushes the next turn further by the time its bytes take at the rate. Idle time is only
+     * carried over for a short burst.
+     *
+     * @param bytes the number of bytes
+     */
+    void acquire(int bytes) {
+        if (nanosPerByte == 0.0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            next = Math.max(next, now - MAX_BURST_NANOS) + (long) (bytes * nanosPerByte);
+            wait = next - now;
+        }
+        if (wait > 0L) {
+            Uninterruptibles.sleepUninterruptibly(wait, TimeUnit.NANOSECONDS);
+        }
+    }
+}
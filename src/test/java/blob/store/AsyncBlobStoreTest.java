@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AsyncBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void put_get_and_remove_asynchronously() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        AsyncBlobStore async = new AsyncBlobStore(store, 4, 1000, 1024L * 1024L);
+        List<ListenableFuture<Void>> puts = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(async.putAsync("key-" + i, ("Blob #" + i).getBytes(UTF_8)));
+        }
+        for (ListenableFuture<Void> put : puts) {
+            put.get();
+        }
+        for (int i = 0; i < 200; i++) {
+            Optional<byte[]> data = async.getAsync("key-" + i).get();
+            assertThat(new String(data.get(), UTF_8), is("Blob #" + i));
+        }
+        async.removeAsync("key-0").get();
+        assertThat(async.getAsync("key-0").get().isPresent(), is(false));
+        assertThat(async.getInFlightOperations(), is(0));
+        assertThat(async.getInFlightBytes(), is(0L));
+        async.close();
+        store.close();
+    }
+
+    @Test
+    public void reject_operations_beyond_the_limits() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        AsyncBlobStore async = new AsyncBlobStore(store, 1, 3, 100L);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        ListenableFuture<Void> blocked = async.putAsync("blocked", new InputSupplier<InputStream>() {
+            @Override
+            public InputStream getInput() throws IOException {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new ByteArrayInputStream("Hello".getBytes(UTF_8));
+            }
+        });
+        started.await();
+
+        ListenableFuture<Void> small = async.putAsync("small", new byte[50]);
+        assertRejected(async.putAsync("large", new byte[200]));
+        ListenableFuture<Void> other = async.putAsync("other", new byte[40]);
+        assertThat(async.getInFlightBytes(), is(90L));
+        assertRejected(async.getAsync("small"));
+        proceed.countDown();
+        blocked.get();
+        small.get();
+        other.get();
+
+        async.putAsync("alone", new byte[200]).get();
+        assertThat(store.getIndex().size(), is(4));
+        async.close();
+        store.close();
+    }
+
+    @Test
+    public void reads_count_against_the_byte_limit() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("large", ByteStreams.newInputStreamSupplier(BlobStoreTest.randomBytes(200, 42L)));
+        AsyncBlobStore async = new AsyncBlobStore(store, 2, 10, 100L);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch firstProceed = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        CountDownLatch secondProceed = new CountDownLatch(1);
+        ListenableFuture<Void> first = async.putAsync("first", blockingSupplier(firstStarted, firstProceed));
+        ListenableFuture<Void> second = async.putAsync("second", blockingSupplier(secondStarted, secondProceed));
+        firstStarted.await();
+        secondStarted.await();
+
+        // The get runs while the queued put holds 60 bytes
+        ListenableFuture<Optional<byte[]>> get = async.getAsync("large");
+        ListenableFuture<Void> queued = async.putAsync("queued", new byte[60]);
+        firstProceed.countDown();
+        first.get();
+        try {
+            get.get();
+            fail("The read should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        secondProceed.countDown();
+        second.get();
+        queued.get();
+
+        // A read larger than the limit goes through on its own
+        assertThat(async.getAsync("large").get().get().length, is(200));
+        assertThat(async.getInFlightBytes(), is(0L));
+        async.close();
+        store.close();
+    }
+
+    private static InputSupplier<InputStream> blockingSupplier(final CountDownLatch started, final CountDownLatch proceed) {
+        return new InputSupplier<InputStream>() {
+            @Override
+            public InputStream getInput() throws IOException {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new ByteArrayInputStream("Hello".getBytes(UTF_8));
+            }
+        };
+    }
+
+    private static void assertRejected(ListenableFuture<?> future) throws InterruptedException {
+        assertThat(future.isDone(), is(true));
+        try {
+            future.get();
+            fail("The operation should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+}
@@ -24,6 +24,7 @@ package blob.store;
 
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
 import org.jboss.byteman.contrib.bmunit.BMRule;
 import org.jboss.byteman.contrib.bmunit.BMScript;
 import org.jboss.byteman.contrib.bmunit.BMUnitRunner;
@@ -32,11 +33,32 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Sets.newHashSet;
 import static com.google.common.io.Files.*;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertThat;
@@ -93,10 +115,76 @@ public class BlobStoreTest {
     @Test(expected = BlobStoreException.class)
     public void create_in_existing_dir_with_corrupt_index() throws IOException {
         File indexFile = temporaryFolder.newFile("index");
-        Files.append("BOO!", indexFile, UTF_8);
+        // A complete record, as a half-written last record is cut on open
+        Files.append("BOO!\n", indexFile, UTF_8);
         new BlobStore(temporaryFolder.getRoot());
     }
 
+    @Test
+    public void opening_recovers_from_a_crash() throws IOException {
+        File root = temporaryFolder.getRoot();
+        BlobStore store = new BlobStore(root);
+        store.put("a", ByteStreams.newInputStreamSupplier(randomBytes(1000, 1L)));
+        store.put("b", ByteStreams.newInputStreamSupplier(randomBytes(1000, 2L)));
+        store.close();
+        Files.append("c => ae1a0771", new File(root, "index"), UTF_8);
+        Files.write(randomBytes(500, 3L), new File(root, BlobStore.TEMP_FILE_PREFIX + "123" + BlobStore.TEMP_FILE_SUFFIX));
+
+        store = new BlobStore(root);
+        assertThat(store.getIndex().keySet(), is((Set<String>) newHashSet("a", "b")));
+        assertThat(ByteStreams.toByteArray(store.get("b").get()), is(randomBytes(1000, 2L)));
+        assertThat(new File(root, BlobStore.TEMP_FILE_PREFIX + "123" + BlobStore.TEMP_FILE_SUFFIX).exists(), is(false));
+        store.put("c", ByteStreams.newInputStreamSupplier(randomBytes(1000, 3L)));
+        store.close();
+
+        store = new BlobStore(root);
+        assertThat(store.getIndex().keySet(), is((Set<String>) newHashSet("a", "b", "c")));
+        store.close();
+    }
+
+    @Test
+    public void scrub_finds_and_repairs_corrupt_missing_and_unreferenced_blobs() throws IOException {
+        File root = temporaryFolder.newFolder("store");
+        BlobStore store = new BlobStore(root, new BlobStoreOptions().packThreshold(512));
+        for (int i = 0; i < 20; i++) {
+            store.put("key-" + i, ByteStreams.newInputStreamSupplier(randomBytes(2000 + (i % 2) * 10000, i)));
+        }
+        store.put("shared", ByteStreams.newInputStreamSupplier(randomBytes(2000, 0L)));
+        store.put("small", ByteStreams.newInputStreamSupplier(new byte[100]));
+        ScrubReport report = store.scrub(4, 0L, false);
+        assertThat(report.isClean(), is(true));
+        assertThat(report.getCheckedBlobs(), is(21L));
+
+        Map<String, String> index = store.getIndex();
+        File tampered = new File(root, index.get("key-1"));
+        File truncated = new File(root, index.get("key-3"));
+        File deleted = new File(root, index.get("key-5"));
+        Files.copy(new File(root, index.get("key-7")), tampered);
+        Files.write(Arrays.copyOf(Files.toByteArray(truncated), 100), truncated);
+        assertThat(deleted.delete(), is(true));
+        BlobStore other = new BlobStore(temporaryFolder.newFolder("other"));
+        other.put("orphan", ByteStreams.newInputStreamSupplier(randomBytes(3000, 99L)));
+        String orphan = other.getIndex().get("orphan");
+        Files.copy(new File(temporaryFolder.getRoot(), "other/" + orphan), new File(root, orphan));
+
+        report = store.scrub(2, 0L, false);
+        assertThat(report.getCorruptBlobs(), is((Set<String>) newHashSet(tampered.getName(), truncated.getName())));
+        assertThat(report.getMissingBlobs(), is((Set<String>) newHashSet(deleted.getName())));
+        assertThat(report.getUnreferencedBlobs(), is((Set<String>) newHashSet(orphan)));
+        assertThat(report.isRepaired(), is(false));
+        assertThat(store.getIndex().size(), is(22));
+
+        report = store.scrub(2, 10L * 1024L * 1024L, true);
+        assertThat(report.isRepaired(), is(true));
+        assertThat(report.getCorruptBlobs().size(), is(2));
+        assertThat(store.getIndex().size(), is(19));
+        assertThat(store.getIndex().containsKey("key-1"), is(false));
+        assertThat(tampered.exists(), is(false));
+        assertThat(new File(root, orphan).exists(), is(false));
+        assertThat(store.scrub(1, 0L, false).isClean(), is(true));
+        store.close();
+    }
+
     @Test
     public void store_some_files() throws IOException {
         BlobStore store = new BlobStore(temporaryFolder.getRoot());
@@ -172,6 +260,981 @@ public class BlobStoreTest {
         assertThat(store.getIndex().size(), is(0));
     }
 
+    @Test
+    public void put_with_a_known_sha1() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")), SAMPLE_SHA1);
+        store.put("sample-bis", new InputSupplier<InputStream>() {
+            @Override
+            public InputStream getInput() throws IOException {
+                throw new AssertionError("The data of a stored blob should not be read");
+            }
+        }, SAMPLE_SHA1.toUpperCase());
+
+        assertThat(store.getIndex().get("sample-bis"), is(SAMPLE_SHA1));
+        assertThat(ByteStreams.toByteArray(store.get("sample-bis").get()),
+                is(Files.toByteArray(new File("src/test/resources/sample"))));
+    }
+
+    @Test
+    public void put_with_a_wrong_sha1() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        try {
+            store.put("POM", newInputStreamSupplier(new File("pom.xml")), SAMPLE_SHA1);
+            fail("A BlobStoreException should have been throw");
+        } catch (BlobStoreException ignored) {
+            assertThat(store.getIndex().size(), is(0));
+            assertThat(new File(temporaryFolder.getRoot(), SAMPLE_SHA1).exists(), is(false));
+            assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+        }
+    }
+
+    @Test
+    public void hash_first_puts() throws IOException {
+        BlobStoreOptions options = new BlobStoreOptions().hashFirst(true).hashFirstSpoolSize(1024);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        CountingSupplier sample = new CountingSupplier(new File("src/test/resources/sample"));
+        CountingSupplier pom = new CountingSupplier(new File("pom.xml"));
+
+        store.put("sample", sample);
+        store.put("sample-bis", sample);
+        assertThat(sample.count, is(2));
+
+        store.put("POM", pom);
+        assertThat(pom.count, is(2));
+        store.put("POM-bis", pom);
+        assertThat(pom.count, is(3));
+
+        assertThat(store.getIndex().get("sample-bis"), is(SAMPLE_SHA1));
+        assertThat(ByteStreams.toByteArray(store.get("POM-bis").get()), is(Files.toByteArray(new File("pom.xml"))));
+        assertThat(ByteStreams.toByteArray(store.get("sample").get()),
+                is(Files.toByteArray(new File("src/test/resources/sample"))));
+    }
+
+    @Test
+    public void blobs_stay_readable_across_codecs() throws IOException {
+        File pom = new File("pom.xml");
+        File sample = new File("src/test/resources/sample");
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("POM-gzip", newInputStreamSupplier(pom));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().codec(Codec.lz4()));
+        store.put("sample-lz4", newInputStreamSupplier(sample));
+        store.put("POM-lz4", newInputStreamSupplier(pom));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().codec(Codec.none()));
+        store.put("hello-none", ByteStreams.newInputStreamSupplier("Hello world!".getBytes(UTF_8)));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().codec(Codec.deflate(1)));
+        assertThat(ByteStreams.toByteArray(store.get("POM-gzip").get()), is(Files.toByteArray(pom)));
+        assertThat(ByteStreams.toByteArray(store.get("POM-lz4").get()), is(Files.toByteArray(pom)));
+        assertThat(ByteStreams.toByteArray(store.get("sample-lz4").get()), is(Files.toByteArray(sample)));
+        assertThat(new String(ByteStreams.toByteArray(store.get("hello-none").get()), UTF_8), is("Hello world!"));
+        assertThat(store.getIndex().get("sample-lz4"), is(SAMPLE_SHA1));
+    }
+
+    @Test
+    public void chunked_blobs_share_their_unchanged_chunks() throws IOException {
+        BlobStoreOptions options = new BlobStoreOptions().chunking(true).averageChunkSize(4096);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        byte[] original = randomBytes(1 << 20, 42L);
+        byte[] edited = Arrays.copyOf(original, original.length + 5);
+        System.arraycopy(original, 500000, edited, 500005, original.length - 500000);
+        System.arraycopy("Hello".getBytes(UTF_8), 0, edited, 500000, 5);
+
+        store.put("original", ByteStreams.newInputStreamSupplier(original));
+        int chunks = blobFilesIn(temporaryFolder.getRoot()).length;
+        store.put("edited", ByteStreams.newInputStreamSupplier(edited));
+        int newChunks = blobFilesIn(temporaryFolder.getRoot()).length - chunks;
+
+        assertThat(chunks > 20, is(true));
+        assertThat(newChunks <= 3, is(true));
+        assertThat(ByteStreams.toByteArray(store.get("original").get()), is(original));
+        assertThat(ByteStreams.toByteArray(store.get("edited").get()), is(edited));
+
+        store.remove("original");
+        assertThat(ByteStreams.toByteArray(store.get("edited").get()), is(edited));
+        store.remove("edited");
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        assertThat(blobFilesIn(new File(temporaryFolder.getRoot(), Manifest.DIRECTORY)).length, is(0));
+    }
+
+    @Test
+    public void chunked_blobs_survive_reopening_without_chunking() throws IOException {
+        BlobStoreOptions options = new BlobStoreOptions().chunking(true).averageChunkSize(1024);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        byte[] data = randomBytes(100000, 7L);
+        store.put("data", ByteStreams.newInputStreamSupplier(data));
+        store.put("data-bis", ByteStreams.newInputStreamSupplier(data));
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("empty", ByteStreams.newInputStreamSupplier(new byte[0]));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        assertThat(store.getIndex().get("sample"), is(SAMPLE_SHA1));
+        assertThat(new File(temporaryFolder.getRoot(), SAMPLE_SHA1).exists(), is(true));
+        assertThat(ByteStreams.toByteArray(store.get("data-bis").get()), is(data));
+        assertThat(ByteStreams.toByteArray(store.get("empty").get()).length, is(0));
+        store.put("plain-data", ByteStreams.newInputStreamSupplier(data));
+
+        store.remove("data");
+        store.remove("data-bis");
+        assertThat(ByteStreams.toByteArray(store.get("plain-data").get()), is(data));
+        store.remove("plain-data");
+        store.remove("sample");
+        store.remove("empty");
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    @Test
+    public void small_blobs_go_to_pack_files() throws IOException {
+        BlobStoreOptions options = new BlobStoreOptions().packThreshold(1024).packSegmentSize(8 * 1024);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        byte[] large = randomBytes(4096, 42L);
+        for (int i = 0; i < 500; i++) {
+            store.put("key-" + i, ByteStreams.newInputStreamSupplier(("Blob #" + i).getBytes(UTF_8)));
+        }
+        store.put("key-bis", ByteStreams.newInputStreamSupplier("Blob #0".getBytes(UTF_8)));
+        store.put("large", ByteStreams.newInputStreamSupplier(large));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(1));
+        assertThat(new String(ByteStreams.toByteArray(store.get("key-42").get()), UTF_8), is("Blob #42"));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        File packs = new File(temporaryFolder.getRoot(), PackStore.DIRECTORY);
+        int segments = packs.list().length;
+        for (int i = 0; i < 400; i++) {
+            store.remove("key-" + i);
+        }
+        assertThat(store.repack() > 0, is(true));
+        assertThat(packs.list().length < segments, is(true));
+        assertThat(new String(ByteStreams.toByteArray(store.get("key-bis").get()), UTF_8), is("Blob #0"));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        assertThat(store.getIndex().size(), is(102));
+        for (int i = 400; i < 500; i++) {
+            assertThat(new String(ByteStreams.toByteArray(store.get("key-" + i).get()), UTF_8), is("Blob #" + i));
+        }
+        assertThat(ByteStreams.toByteArray(store.get("large").get()), is(large));
+        assertThat(store.get("key-0").isPresent(), is(false));
+    }
+
+    @Test
+    public void blob_files_fan_out_in_sub_directories() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().fanOut(2));
+        store.put("sample", ByteStreams.newInputStreamSupplier("Hello world".getBytes(UTF_8)));
+        String sha1 = store.getIndex().get("sample");
+        File blob = new File(temporaryFolder.getRoot(), sha1.substring(0, 2) + "/" + sha1.substring(2, 4) + "/" + sha1.substring(4));
+        assertThat(blob.isFile(), is(true));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        assertThat(new String(ByteStreams.toByteArray(store.get("sample").get()), UTF_8), is("Hello world"));
+        store.remove("sample");
+        assertThat(blob.exists(), is(false));
+    }
+
+    @Test
+    public void flat_stores_migrate_to_fanned_out_layouts_while_serving_reads() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        for (int i = 0; i < 200; i++) {
+            store.put("key-" + i, ByteStreams.newInputStreamSupplier(("Blob #" + i).getBytes(UTF_8)));
+        }
+        store.close();
+
+        final BlobStore reopened = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().fanOut(1));
+        reopened.put("new", ByteStreams.newInputStreamSupplier("New blob".getBytes(UTF_8)));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(200));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> readers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 3; t++) {
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = 0; i < 200; i++) {
+                            InputStream in = reopened.get("key-" + i).get();
+                            try {
+                                assertThat(new String(ByteStreams.toByteArray(in), UTF_8), is("Blob #" + i));
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                reopened.migrateLayout();
+                return null;
+            }
+        }).get();
+        for (Future<Void> reader : readers) {
+            reader.get();
+        }
+        executor.shutdown();
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        reopened.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        for (int i = 0; i < 200; i++) {
+            assertThat(new String(ByteStreams.toByteArray(store.get("key-" + i).get()), UTF_8), is("Blob #" + i));
+        }
+        assertThat(new String(ByteStreams.toByteArray(store.get("new").get()), UTF_8), is("New blob"));
+        String sha1 = store.getIndex().get("key-0");
+        assertThat(new File(temporaryFolder.getRoot(), sha1.substring(0, 2) + "/" + sha1.substring(2)).isFile(), is(true));
+    }
+
+    @Test
+    public void read_cache_serves_shared_blobs_and_forgets_removed_ones() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().cacheSize(1024 * 1024));
+        byte[] large = randomBytes(128 * 1024, 7L);
+        store.put("a", ByteStreams.newInputStreamSupplier("Hello world".getBytes(UTF_8)));
+        store.put("b", ByteStreams.newInputStreamSupplier("Hello world".getBytes(UTF_8)));
+        store.put("large", ByteStreams.newInputStreamSupplier(large));
+
+        assertThat(new String(ByteStreams.toByteArray(store.get("a").get()), UTF_8), is("Hello world"));
+        assertThat(new String(ByteStreams.toByteArray(store.get("b").get()), UTF_8), is("Hello world"));
+        assertThat(ByteStreams.toByteArray(store.get("large").get()), is(large));
+        assertThat(ByteStreams.toByteArray(store.get("large").get()), is(large));
+        assertThat(store.getCacheStats().hitCount(), is(1L));
+        assertThat(store.getCacheStats().missCount(), is(3L));
+
+        store.remove("a");
+        store.remove("b");
+        assertThat(store.get("a").isPresent(), is(false));
+        store.put("c", ByteStreams.newInputStreamSupplier("Hello world".getBytes(UTF_8)));
+        assertThat(new String(ByteStreams.toByteArray(store.get("c").get()), UTF_8), is("Hello world"));
+        assertThat(store.getCacheStats().missCount(), is(4L));
+    }
+
+    @Test
+    public void range_reads_across_codecs_and_chunks() throws IOException {
+        byte[] data = randomBytes(300 * 1024, 3L);
+        for (int i = 0; i < data.length; i = i + 7) {
+            data[i] = 0;
+        }
+        List<BlobStoreOptions> options = Arrays.asList(
+                new BlobStoreOptions(),
+                new BlobStoreOptions().codec(Codec.none()),
+                new BlobStoreOptions().codec(Codec.lz4()),
+                new BlobStoreOptions().codec(Codec.blockDeflate(-1)),
+                new BlobStoreOptions().codec(Codec.blockDeflate(-1)).chunking(true).averageChunkSize(4096),
+                new BlobStoreOptions().cacheSize(64L * 1024L * 1024L));
+        for (int i = 0; i < options.size(); i++) {
+            BlobStore store = new BlobStore(temporaryFolder.newFolder("store-" + i), options.get(i));
+            store.put("data", ByteStreams.newInputStreamSupplier(data));
+            ByteStreams.toByteArray(store.get("data").get());
+            for (int offset : new int[]{0, 1, 65536, 100000, 250000, data.length - 1}) {
+                byte[] range = ByteStreams.toByteArray(store.get("data", offset, 20000).get());
+                assertThat(range, is(Arrays.copyOfRange(data, offset, Math.min(offset + 20000, data.length))));
+            }
+            assertThat(ByteStreams.toByteArray(store.get("data", data.length + 10, 10).get()).length, is(0));
+            assertThat(ByteStreams.toByteArray(store.get("data", 0, 0).get()).length, is(0));
+            assertThat(store.get("missing", 0, 10).isPresent(), is(false));
+            store.close();
+        }
+    }
+
+    @Test
+    public void large_blobs_get_compressed_in_parallel() throws IOException {
+        byte[] data = randomBytes(3 * 1024 * 1024 + 12345, 7L);
+        for (int i = 0; i < data.length; i = i + 5) {
+            data[i] = 0;
+        }
+        List<Codec> codecs = Arrays.asList(Codec.gzip(), Codec.lz4(), Codec.blockDeflate(1), Codec.none());
+        for (int i = 0; i < codecs.size(); i++) {
+            BlobStore sequential = new BlobStore(temporaryFolder.newFolder("sequential-" + i),
+                    new BlobStoreOptions().codec(codecs.get(i)));
+            BlobStore parallel = new BlobStore(temporaryFolder.newFolder("parallel-" + i),
+                    new BlobStoreOptions().codec(codecs.get(i)).compressionThreads(4));
+            for (BlobStore store : Arrays.asList(sequential, parallel)) {
+                store.put("data", ByteStreams.newInputStreamSupplier(data));
+                store.put("small", ByteStreams.newInputStreamSupplier(data, 0, 1000));
+                store.put("aligned", ByteStreams.newInputStreamSupplier(data, 0, 2 * 1024 * 1024));
+            }
+            for (String key : Arrays.asList("data", "small", "aligned")) {
+                assertThat(ByteStreams.toByteArray(parallel.get(key).get()),
+                        is(ByteStreams.toByteArray(sequential.get(key).get())));
+            }
+            assertThat(ByteStreams.toByteArray(parallel.get("data", 2000000, 100000).get()),
+                    is(Arrays.copyOfRange(data, 2000000, 2100000)));
+
+            File[] files = blobFilesIn(new File(temporaryFolder.getRoot(), "sequential-" + i));
+            assertThat(files.length, is(3));
+            if (codecs.get(i) != Codec.gzip()) {
+                for (File file : files) {
+                    File twin = new File(new File(temporaryFolder.getRoot(), "parallel-" + i), file.getName());
+                    assertThat(Files.toByteArray(twin), is(Files.toByteArray(file)));
+                }
+            }
+            sequential.close();
+            parallel.close();
+        }
+    }
+
+    @Test
+    public void transfer_blobs_compressed_in_parallel_to_readers_of_the_first_gzip_member() throws Exception {
+        byte[] data = randomBytes(3 * 1024 * 1024, 9L);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().compressionThreads(2));
+        store.put("data", ByteStreams.newInputStreamSupplier(data));
+        store.put("small", ByteStreams.newInputStreamSupplier(data, 0, 1000));
+
+        for (String key : Arrays.asList("data", "small")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ContentEncoding encoding = store.transferTo(key, Channels.newChannel(out), true).get();
+            byte[] sent = (encoding == ContentEncoding.GZIP) ? firstGzipMember(out.toByteArray()) : out.toByteArray();
+            assertThat(sent, is(ByteStreams.toByteArray(store.get(key).get())));
+        }
+        store.close();
+    }
+
+    private static byte[] firstGzipMember(byte[] gzip) throws Exception {
+        int offset = 10;
+        if ((gzip[3] & 0x04) != 0) {
+            offset = offset + 2 + ((gzip[10] & 0xff) | ((gzip[11] & 0xff) << 8));
+        }
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(gzip, offset, gzip.length - offset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && inflater.needsInput()) {
+                break;
+            }
+            out.write(buffer, 0, count);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void transfer_blobs_to_channels() throws IOException {
+        byte[] data = randomBytes(100 * 1024, 5L);
+        BlobStore gzip = new BlobStore(temporaryFolder.newFolder("gzip"));
+        BlobStore none = new BlobStore(temporaryFolder.newFolder("none"), new BlobStoreOptions().codec(Codec.none()));
+        BlobStore lz4 = new BlobStore(temporaryFolder.newFolder("lz4"), new BlobStoreOptions().codec(Codec.lz4()));
+        for (BlobStore store : Arrays.asList(gzip, none, lz4)) {
+            store.put("data", ByteStreams.newInputStreamSupplier(data));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(gzip.transferTo("data", Channels.newChannel(out), true).get(), is(ContentEncoding.GZIP));
+        assertThat(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))), is(data));
+        out.reset();
+        assertThat(gzip.transferTo("data", Channels.newChannel(out), false).get(), is(ContentEncoding.IDENTITY));
+        assertThat(out.toByteArray(), is(data));
+        out.reset();
+        assertThat(lz4.transferTo("data", Channels.newChannel(out), true).get(), is(ContentEncoding.IDENTITY));
+        assertThat(out.toByteArray(), is(data));
+
+        File file = temporaryFolder.newFile("transferred");
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            assertThat(none.transferTo("data", fileOut.getChannel()), is(true));
+        } finally {
+            fileOut.close();
+        }
+        assertThat(Files.toByteArray(file), is(data));
+        assertThat(none.transferTo("missing", Channels.newChannel(out)), is(false));
+    }
+
+    @Test
+    public void batches_apply_puts_and_removals_together() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("a", ByteStreams.newInputStreamSupplier("A".getBytes(UTF_8)));
+        store.put("b", ByteStreams.newInputStreamSupplier("B".getBytes(UTF_8)));
+        store.put("c", ByteStreams.newInputStreamSupplier("C".getBytes(UTF_8)));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            store.batch(executor)
+                    .put("a", ByteStreams.newInputStreamSupplier("A".getBytes(UTF_8)))
+                    .put("c", ByteStreams.newInputStreamSupplier("C2".getBytes(UTF_8)))
+                    .put("d", ByteStreams.newInputStreamSupplier("A".getBytes(UTF_8)))
+                    .put("e", ByteStreams.newInputStreamSupplier("E".getBytes(UTF_8)))
+                    .put("f", ByteStreams.newInputStreamSupplier("F".getBytes(UTF_8)))
+                    .remove("f")
+                    .remove("b")
+                    .remove("missing")
+                    .commit();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(new HashSet<String>(store.getIndex().keySet()), is(newHashSet("a", "c", "d", "e")));
+        assertThat(new String(ByteStreams.toByteArray(store.get("c").get()), UTF_8), is("C2"));
+        assertThat(new String(ByteStreams.toByteArray(store.get("d").get()), UTF_8), is("A"));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(3));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        assertThat(store.getIndex().size(), is(4));
+        store.batch().remove("a").remove("c").remove("e").commit();
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(1));
+        store.remove("d");
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    @Test
+    public void gets_of_missing_chunks_release_the_other_chunks() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().chunking(true).averageChunkSize(1024));
+        store.put("chunked", ByteStreams.newInputStreamSupplier(randomBytes(64 * 1024, 1L)));
+        File[] manifests = blobFilesIn(new File(temporaryFolder.getRoot(), Manifest.DIRECTORY));
+        assertThat(manifests.length, is(1));
+        Manifest manifest = Manifest.read(manifests[0]);
+        assertThat(manifest.size() > 1, is(true));
+        assertThat(new File(temporaryFolder.getRoot(), manifest.digest(0)).delete(), is(true));
+
+        assertThat(store.get("chunked").isPresent(), is(false));
+        assertThat(store.getIndex().isEmpty(), is(true));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        assertThat(blobFilesIn(new File(temporaryFolder.getRoot(), Manifest.DIRECTORY)).length, is(0));
+        store.close();
+    }
+
+    @Test
+    public void failed_batches_apply_nothing() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().chunking(true).averageChunkSize(1024));
+        store.put("a", ByteStreams.newInputStreamSupplier("A".getBytes(UTF_8)));
+        Batch batch = store.batch()
+                .put("b", ByteStreams.newInputStreamSupplier(randomBytes(64 * 1024, 1L)))
+                .put("c", new InputSupplier<InputStream>() {
+                    @Override
+                    public InputStream getInput() throws IOException {
+                        throw new IOException("Nope");
+                    }
+                })
+                .remove("a");
+        try {
+            batch.commit();
+            fail("The batch should have failed");
+        } catch (BlobStoreException expected) {
+            // Expected
+        }
+        assertThat(new HashSet<String>(store.getIndex().keySet()), is(newHashSet("a")));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(1));
+        assertThat(blobFilesIn(new File(temporaryFolder.getRoot(), Manifest.DIRECTORY)).length, is(0));
+        assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    @Test
+    public void concurrent_batches_and_puts() throws Exception {
+        final BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().packThreshold(256));
+        final ExecutorService compressors = Executors.newFixedThreadPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(thread);
+                    for (int round = 0; round < 30; round++) {
+                        Batch batch = store.batch(compressors);
+                        for (int i = 0; i < 20; i++) {
+                            String key = "key-" + random.nextInt(100);
+                            if (random.nextInt(4) == 0) {
+                                batch.remove(key);
+                            } else {
+                                byte[] data = ("Blob #" + random.nextInt(50)).getBytes(UTF_8);
+                                batch.put(key, ByteStreams.newInputStreamSupplier(data));
+                            }
+                        }
+                        batch.commit();
+                        store.put("key-" + random.nextInt(100), ByteStreams.newInputStreamSupplier(randomBytes(1024, round)));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        compressors.shutdown();
+
+        Set<String> digests = new HashSet<String>(store.getIndex().values());
+        for (String key : store.getIndex().keySet()) {
+            assertThat(store.get(key).isPresent(), is(true));
+        }
+        store.close();
+        File packs = new File(temporaryFolder.getRoot(), PackStore.DIRECTORY);
+        BlobStore reopened = new BlobStore(temporaryFolder.getRoot());
+        assertThat(reopened.getIndex(), is(store.getIndex()));
+        int packed = 0;
+        for (String sha1 : digests) {
+            if (!new File(temporaryFolder.getRoot(), sha1).exists()) {
+                packed = packed + 1;
+            }
+        }
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(digests.size() - packed));
+        assertThat(packs.isDirectory(), is(true));
+        assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    @Test
+    public void concurrent_chunked_puts_and_removes() throws Exception {
+        BlobStoreOptions options = new BlobStoreOptions().chunking(true).averageChunkSize(1024).packThreshold(1024);
+        final BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        final byte[] base = randomBytes(64 * 1024, 1L);
+        final int threads = 8;
+        final int versions = 20;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < versions; i++) {
+                        byte[] version = base.clone();
+                        version[(i * 4099) % version.length] = (byte) thread;
+                        String key = "key-" + thread + "-" + i;
+                        store.put(key, ByteStreams.newInputStreamSupplier(version));
+                        assertThat(ByteStreams.toByteArray(store.get(key).get()), is(version));
+                        if (i % 2 == 0) {
+                            store.remove(key);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(store.getIndex().size(), is(threads * versions / 2));
+        store.close();
+        BlobStore reopened = new BlobStore(temporaryFolder.getRoot());
+        for (String key : new ArrayList<String>(reopened.getIndex().keySet())) {
+            reopened.remove(key);
+        }
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(0));
+        assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static File[] blobFilesIn(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return Sha1.isValid(name);
+            }
+        });
+        return (files != null) ? files : new File[0];
+    }
+
+    static class CountingSupplier implements InputSupplier<InputStream> {
+        final File file;
+        int count;
+
+        CountingSupplier(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInput() throws IOException {
+            count = count + 1;
+            return new FileInputStream(file);
+        }
+    }
+
+    @Test
+    public void shared_blobs_survive_until_their_last_key_is_removed() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        File blob = new File(temporaryFolder.getRoot(), SAMPLE_SHA1);
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("sample-bis", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("sample-ter", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        store.remove("sample");
+        assertThat(blob.exists(), is(true));
+        assertThat(store.get("sample-bis").isPresent(), is(true));
+
+        store.put("sample-ter", newInputStreamSupplier(new File("pom.xml")));
+        assertThat(blob.exists(), is(true));
+
+        store.remove("sample-bis");
+        assertThat(blob.exists(), is(false));
+    }
+
+    @Test
+    public void overwritten_blobs_are_removed() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        assertThat(new File(temporaryFolder.getRoot(), SAMPLE_SHA1).exists(), is(true));
+
+        store.put("sample", newInputStreamSupplier(new File("pom.xml")));
+        assertThat(new File(temporaryFolder.getRoot(), SAMPLE_SHA1).exists(), is(false));
+        assertThat(store.get("sample").isPresent(), is(true));
+    }
+
+    @Test
+    public void deferred_blob_removal() throws Exception {
+        BlobStoreOptions options = new BlobStoreOptions().deferredBlobRemoval(true);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        File blob = new File(temporaryFolder.getRoot(), SAMPLE_SHA1);
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("sample-bis", newInputStreamSupplier(new File("src/test/resources/sample")));
+
+        store.remove("sample");
+        store.collectUnreferencedBlobs();
+        assertThat(blob.exists(), is(true));
+
+        store.remove("sample-bis");
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (blob.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(blob.exists(), is(false));
+
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.close();
+        assertThat(blob.exists(), is(true));
+    }
+
+    @Test
+    public void removals_survive_reopening() throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.put("POM", newInputStreamSupplier(new File("pom.xml")));
+        store.remove("sample");
+        store.put("POM", newInputStreamSupplier(new File("src/test/resources/sample")));
+        store.close();
+
+        store = new BlobStore(temporaryFolder.getRoot());
+        assertThat(store.getIndex().size(), is(1));
+        assertThat(store.getIndex().get("POM"), is(SAMPLE_SHA1));
+        assertThat(readLines(new File(temporaryFolder.getRoot(), "index"), UTF_8).size(), is(4));
+    }
+
+    @Test
+    public void compact_index() throws IOException {
+        removals_survive_reopening();
+        BlobStore store = new BlobStore(temporaryFolder.getRoot());
+        store.compactIndex();
+        store.close();
+
+        assertThat(readLines(new File(temporaryFolder.getRoot(), "index"), UTF_8).size(), is(1));
+        assertThat(new BlobStore(temporaryFolder.getRoot()).getIndex().get("POM"), is(SAMPLE_SHA1));
+    }
+
+    @Test
+    public void compact_index_in_the_background() throws Exception {
+        BlobStoreOptions options = new BlobStoreOptions().compactionMinDeadRecords(10).compactionRatio(1.0);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        File indexFile = new File(temporaryFolder.getRoot(), "index");
+
+        for (int i = 0; i < 20; i++) {
+            store.put("sample-" + i, newInputStreamSupplier(new File("src/test/resources/sample")));
+            store.remove("sample-" + i);
+        }
+        store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (readLines(indexFile, UTF_8).size() > 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        store.close();
+
+        assertThat(readLines(indexFile, UTF_8).size() <= 20, is(true));
+        assertThat(new BlobStore(temporaryFolder.getRoot()).getIndex(), is(store.getIndex()));
+        assertThat(store.getIndex().get("sample"), is(SAMPLE_SHA1));
+    }
+
+    @Test
+    public void migrate_to_binary_index() throws IOException {
+        removals_survive_reopening();
+        BlobStoreOptions options = new BlobStoreOptions().indexFormat(IndexFormat.BINARY);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+
+        assertThat(new File(temporaryFolder.getRoot(), "index.bin").exists(), is(true));
+        assertThat(readLines(new File(temporaryFolder.getRoot(), "index"), UTF_8).size(), is(0));
+        assertThat(store.getIndex().size(), is(1));
+        assertThat(store.getIndex().get("POM"), is(SAMPLE_SHA1));
+        assertThat(store.get("POM").isPresent(), is(true));
+    }
+
+    @Test
+    public void binary_index_updates() throws IOException {
+        BlobStoreOptions options = new BlobStoreOptions().indexFormat(IndexFormat.BINARY);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        for (String key : new String[]{"b", "a", "\u00e9t\u00e9", "c/d", "\ud83d\ude00", "\uffff"}) {
+            store.put(key, newInputStreamSupplier(new File("src/test/resources/sample")));
+        }
+        store.put("POM", newInputStreamSupplier(new File("pom.xml")));
+        store.compactIndex();
+
+        store.remove("a");
+        store.put("b", newInputStreamSupplier(new File("pom.xml")));
+        store.put("z", newInputStreamSupplier(new File("src/test/resources/sample")));
+        assertThat(store.getIndex().size(), is(7));
+        assertThat(store.getIndex().containsKey("a"), is(false));
+        assertThat(store.getIndex().get("\ud83d\ude00"), is(SAMPLE_SHA1));
+        assertThat(store.getIndex().get("\uffff"), is(SAMPLE_SHA1));
+        assertThat(store.getIndex().get("b"), is(store.getIndex().get("POM")));
+        store.close();
+
+        // Text stores keep the binary index once they have one
+        BlobStore reopened = new BlobStore(temporaryFolder.getRoot());
+        assertThat(reopened.getIndex(), is(store.getIndex()));
+        reopened.compactIndex();
+        reopened.close();
+        assertThat(readLines(new File(temporaryFolder.getRoot(), "index"), UTF_8).size(), is(0));
+        assertThat(new BlobStore(temporaryFolder.getRoot()).getIndex(), is(store.getIndex()));
+    }
+
+    @Test
+    public void scan_and_list_keys_in_order() throws IOException {
+        scan_and_list_keys_in_order(new BlobStoreOptions());
+    }
+
+    @Test
+    public void scan_and_list_keys_in_order_with_binary_index() throws IOException {
+        scan_and_list_keys_in_order(new BlobStoreOptions().indexFormat(IndexFormat.BINARY));
+    }
+
+    private void scan_and_list_keys_in_order(BlobStoreOptions options) throws IOException {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        for (String key : new String[]{"tenant42/b", "tenant4", "tenant42/a", "tenant43/a", "tenant42/\ud83d\ude00", "tenant42/\uffff"}) {
+            store.put(key, newInputStreamSupplier(new File("src/test/resources/sample")));
+        }
+        store.compactIndex();
+        store.remove("tenant42/a");
+        store.put("tenant42/c", newInputStreamSupplier(new File("pom.xml")));
+        store.put("tenant42", newInputStreamSupplier(new File("src/test/resources/sample")));
+
+        assertThat(keys(store.scan("tenant42/")), is(Arrays.asList("tenant42/b", "tenant42/c", "tenant42/\uffff", "tenant42/\ud83d\ude00")));
+        assertThat(keys(store.scan("tenant42")).size(), is(5));
+        assertThat(keys(store.scan("tenant5")).isEmpty(), is(true));
+        assertThat(keys(store.scan("")).size(), is(store.getIndex().size()));
+        assertThat(store.scan("tenant42/c").next().getValue(), is(store.getIndex().get("tenant42/c")));
+
+        assertThat(keys(store.list(null, 3)), is(Arrays.asList("tenant4", "tenant42", "tenant42/b")));
+        assertThat(keys(store.list("tenant42/b", 2)), is(Arrays.asList("tenant42/c", "tenant42/\uffff")));
+        assertThat(keys(store.list("tenant42/a", 1)), is(Arrays.asList("tenant42/b")));
+        assertThat(keys(store.list("tenant42/\ud83d\ude00", 10)), is(Arrays.asList("tenant43/a")));
+        assertThat(keys(store.list("tenant43/a", 10)).isEmpty(), is(true));
+        store.close();
+    }
+
+    private List<String> keys(Iterator<Map.Entry<String, String>> entries) {
+        List<String> keys = new ArrayList<String>();
+        while (entries.hasNext()) {
+            keys.add(entries.next().getKey());
+        }
+        return keys;
+    }
+
+    @Test
+    public void capacity_bounded_store_evicts_least_recently_used_blobs() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().capacityKeys(10L));
+        for (int i = 0; i < 10; i++) {
+            store.put("key-" + i, ByteStreams.newInputStreamSupplier(randomBytes(1000, i)));
+        }
+        assertThat(store.evict(), is(0));
+        Thread.sleep(150L);
+        for (int i = 0; i < 5; i++) {
+            ByteStreams.toByteArray(store.get("key-" + i).get());
+        }
+        store.put("key-10", ByteStreams.newInputStreamSupplier(randomBytes(1000, 10)));
+        store.evict();
+
+        assertThat(store.getIndex().size(), is(9));
+        for (int i : new int[]{0, 1, 2, 3, 4, 10}) {
+            assertThat(store.getIndex().containsKey("key-" + i), is(true));
+        }
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(9));
+        store.close();
+    }
+
+    @Test
+    public void eviction_removes_every_key_of_a_shared_blob() throws Exception {
+        BlobStoreOptions options = new BlobStoreOptions().capacityBytes(5000L);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        store.put("shared-1", ByteStreams.newInputStreamSupplier(randomBytes(2000, 1)));
+        store.put("shared-2", ByteStreams.newInputStreamSupplier(randomBytes(2000, 1)));
+        store.put("other", ByteStreams.newInputStreamSupplier(randomBytes(2000, 2)));
+        Thread.sleep(150L);
+        ByteStreams.toByteArray(store.get("other").get());
+        store.put("new", ByteStreams.newInputStreamSupplier(randomBytes(2000, 3)));
+        store.evict();
+
+        assertThat(store.getIndex().keySet(), is((Set<String>) newHashSet("other", "new")));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(2));
+        store.close();
+
+        // Sizes are recovered from the blob files, and the store gets evicted down to its new capacity
+        BlobStore reopened = new BlobStore(temporaryFolder.getRoot(), options.capacityBytes(3000L));
+        assertThat(reopened.evict(), is(1));
+        assertThat(reopened.getIndex().size(), is(1));
+        reopened.close();
+    }
+
+    @Test
+    public void eviction_forgets_the_blobs_of_invalid_keys() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().capacityBytes(5000L));
+        store.put("missing", ByteStreams.newInputStreamSupplier(randomBytes(2000, 1)));
+        for (File blob : blobFilesIn(temporaryFolder.getRoot())) {
+            assertThat(blob.delete(), is(true));
+        }
+        store.put("key-0", ByteStreams.newInputStreamSupplier(randomBytes(2000, 2)));
+        Thread.sleep(150L);
+        assertThat(store.get("missing").isPresent(), is(false));
+
+        // The missing blob no longer counts, so that the store is still under its capacity
+        store.put("key-1", ByteStreams.newInputStreamSupplier(randomBytes(2000, 3)));
+        assertThat(store.evict(), is(0));
+        assertThat(store.getIndex().keySet(), is((Set<String>) newHashSet("key-0", "key-1")));
+        assertThat(blobFilesIn(temporaryFolder.getRoot()).length, is(2));
+        store.close();
+    }
+
+    @Test
+    public void eviction_counts_shared_chunks_once() throws Exception {
+        BlobStoreOptions options = new BlobStoreOptions()
+                .chunking(true)
+                .averageChunkSize(4096)
+                .capacityBytes(2500 * 1024L);
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        byte[] original = randomBytes(1 << 20, 42L);
+        byte[] edited = Arrays.copyOf(original, original.length + 5);
+        System.arraycopy(original, 500000, edited, 500005, original.length - 500000);
+        System.arraycopy("Hello".getBytes(UTF_8), 0, edited, 500000, 5);
+        store.put("original", ByteStreams.newInputStreamSupplier(original));
+        store.put("edited", ByteStreams.newInputStreamSupplier(edited));
+        store.put("other", ByteStreams.newInputStreamSupplier(randomBytes(1 << 20, 43L)));
+
+        // About 2MB are stored, while counting the shared chunks twice would give about 3MB
+        assertThat(store.evict(), is(0));
+        assertThat(store.getIndex().size(), is(3));
+        store.close();
+
+        BlobStore reopened = new BlobStore(temporaryFolder.getRoot(), options);
+        assertThat(reopened.evict(), is(0));
+        reopened.close();
+    }
+
+    @Test
+    public void size_aware_eviction_picks_large_blobs_first() throws Exception {
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions()
+                .capacityBytes(100 * 1000L)
+                .evictionPolicy(EvictionPolicy.SIZE_AWARE));
+        for (int i = 0; i < 10; i++) {
+            store.put("small-" + i, ByteStreams.newInputStreamSupplier(randomBytes(100, i)));
+        }
+        Thread.sleep(150L);
+        store.put("large", ByteStreams.newInputStreamSupplier(randomBytes(100 * 1000, 10)));
+        store.evict();
+
+        assertThat(store.getIndex().size(), is(10));
+        assertThat(store.getIndex().containsKey("large"), is(false));
+        store.close();
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_hashing_first() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions().hashFirst(true).hashFirstSpoolSize(8));
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_with_binary_index() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions()
+                .indexFormat(IndexFormat.BINARY)
+                .compactionMinDeadRecords(100));
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_with_pack_files() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions().packThreshold(1024).packSegmentSize(1024));
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_with_lz4() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions().codec(Codec.lz4()));
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions());
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_with_batch_durability() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions().durability(Durability.PER_BATCH));
+    }
+
+    @Test
+    public void concurrent_puts_gets_and_removes_with_operation_durability() throws Exception {
+        concurrent_puts_gets_and_removes(new BlobStoreOptions().durability(Durability.PER_OPERATION));
+    }
+
+    private void concurrent_puts_gets_and_removes(BlobStoreOptions options) throws Exception {
+        final BlobStore store = new BlobStore(temporaryFolder.getRoot(), options);
+        final File sample = new File("src/test/resources/sample");
+        final int threads = 8;
+        final int keysPerThread = 50;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        String key = "key-" + thread + "-" + i;
+                        store.put(key, newInputStreamSupplier(sample));
+                        store.put(key + "-unique", ByteStreams.newInputStreamSupplier(key.getBytes(UTF_8)));
+                        assertThat(store.get(key).isPresent(), is(true));
+                        if (i % 2 == 0) {
+                            store.remove(key + "-unique");
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        int expected = threads * keysPerThread + threads * (keysPerThread / 2);
+        assertThat(store.getIndex().size(), is(expected));
+        store.close();
+        assertThat(new BlobStore(temporaryFolder.getRoot()).getIndex(), is(store.getIndex()));
+        assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
+    }
+
+    static File[] temporaryFilesIn(File directory) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".tmp");
+            }
+        });
+    }
+
     // Tests with Byteman ........................................................................................... //
 
     @Test
@@ -213,9 +1276,8 @@ public class BlobStoreTest {
             store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
             fail("A BlobStoreException should have been throw");
         } catch (BlobStoreException ignored) {
-            File temp = new File(temporaryFolder.getRoot(), "TEMP");
             File blob = new File(temporaryFolder.getRoot(), SAMPLE_SHA1);
-            assertThat(temp.exists(), is(false));
+            assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
             assertThat(blob.exists(), is(false));
         }
     }
@@ -228,9 +1290,8 @@ public class BlobStoreTest {
             store.put("sample", newInputStreamSupplier(new File("src/test/resources/sample")));
             fail("A BlobStoreException should have been throw");
         } catch (BlobStoreException ignored) {
-            File temp = new File(temporaryFolder.getRoot(), "TEMP");
             File blob = new File(temporaryFolder.getRoot(), SAMPLE_SHA1);
-            assertThat(temp.exists(), is(false));
+            assertThat(temporaryFilesIn(temporaryFolder.getRoot()).length, is(0));
             assertThat(blob.exists(), is(false));
         }
     }
@@ -243,23 +1304,32 @@ public class BlobStoreTest {
         store.get("sample");
     }
 
-    @BMScript(value = "fail_to_delete_index", dir = BYTEMAN_SCRIPTS)
-    @Test(expected = BlobStoreException.class)
-    public void fail_to_delete_index() throws IOException {
-        BlobStore store = new BlobStore(temporaryFolder.getRoot());
-        store.put("POM", newInputStreamSupplier(new File("pom.xml")));
-        store.remove("POM");
+    @BMScript(value = "fail_to_swap_compacted_index", dir = BYTEMAN_SCRIPTS)
+    @Test
+    public void fail_to_swap_compacted_index() throws IOException {
+        verify_index_survives_a_failed_compaction();
     }
 
-    @BMScript(value = "fail_to_write_entries_in_index", dir = BYTEMAN_SCRIPTS)
-    @Test(expected = BlobStoreException.class)
-    public void fail_to_write_entries_in_index() throws IOException {
+    @BMScript(value = "fail_to_write_compacted_index", dir = BYTEMAN_SCRIPTS)
+    @Test
+    public void fail_to_write_compacted_index() throws IOException {
+        verify_index_survives_a_failed_compaction();
+    }
+
+    private void verify_index_survives_a_failed_compaction() throws IOException {
         BlobStore store = new BlobStore(temporaryFolder.getRoot());
         store.put("POM", newInputStreamSupplier(new File("pom.xml")));
         store.put("PAM", newInputStreamSupplier(new File("pom.xml")));
         store.put("PIM", newInputStreamSupplier(new File("pom.xml")));
-        store.put("OMG", newInputStreamSupplier(new File("pom.xml")));
-        store.remove("OMG");
+        store.remove("PIM");
+        try {
+            store.compactIndex();
+            fail("A BlobStoreException should have been throw");
+        } catch (BlobStoreException ignored) {
+            assertThat(new File(temporaryFolder.getRoot(), "index.compact").exists(), is(false));
+            assertThat(new BlobStore(temporaryFolder.getRoot()).getIndex(), is(store.getIndex()));
+            assertThat(store.getIndex().size(), is(2));
+        }
     }
 
     @BMScript(value = "fail_to_delete_a_blob_file_on_remove", dir = BYTEMAN_SCRIPTS)
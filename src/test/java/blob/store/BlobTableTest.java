@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package blob.store;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.hash.Hashing.sha1;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BlobTableTest {
+
+    @Test
+    public void count_references_like_a_map_under_random_operations() {
+        BlobTable table = new BlobTable(false);
+        Map<String, Integer> reference = new HashMap<String, Integer>();
+        String[] digests = new String[5000];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = sha1().newHasher().putInt(i).hash().toString();
+        }
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 200000; i++) {
+            String digest = digests[random.nextInt(digests.length)];
+            Integer count = reference.get(digest);
+            if (count != null && random.nextBoolean()) {
+                assertThat(table.release(digest), is(count - 1));
+                if (count == 1) {
+                    reference.remove(digest);
+                } else {
+                    reference.put(digest, count - 1);
+                }
+            } else {
+                int retained = (count == null) ? 1 : count + 1;
+                assertThat(table.retain(digest), is(retained));
+                reference.put(digest, retained);
+            }
+        }
+
+        assertThat(table.size(), is(reference.size()));
+        for (String digest : digests) {
+            Integer count = reference.get(digest);
+            assertThat(table.references(digest), is((count == null) ? 0 : count));
+        }
+    }
+
+    @Test
+    public void track_usage_until_the_last_reference_is_dropped() {
+        BlobTable table = new BlobTable(true);
+        String digest = BlobStoreTest.SAMPLE_SHA1;
+        table.retain(digest);
+        table.retain(digest);
+        table.track(digest, 100L, System.currentTimeMillis());
+        table.track(digest, 100L, System.currentTimeMillis());
+        assertThat(table.trackedBytes(), is(100L));
+
+        table.release(digest);
+        assertThat(table.trackedBytes(), is(100L));
+        table.release(digest);
+        assertThat(table.trackedBytes(), is(0L));
+        table.retain(digest);
+        assertThat(table.tracked(digest), is(false));
+    }
+}
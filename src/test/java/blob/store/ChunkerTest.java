@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.hash.Hashing.sha1;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ChunkerTest {
+
+    @Test
+    public void chunks_cover_the_stream_within_bounds() throws IOException {
+        byte[] data = BlobStoreTest.randomBytes(500000, 42L);
+        Chunker chunker = new Chunker(new ByteArrayInputStream(data), 4096);
+        ByteArrayOutputStream stitched = new ByteArrayOutputStream();
+        List<Integer> lengths = new ArrayList<Integer>();
+        while (chunker.next()) {
+            stitched.write(chunker.buffer(), chunker.offset(), chunker.length());
+            lengths.add(chunker.length());
+        }
+
+        assertThat(stitched.toByteArray(), is(data));
+        for (int i = 0; i < lengths.size() - 1; i++) {
+            assertThat(lengths.get(i) >= 1024 && lengths.get(i) <= 16384, is(true));
+        }
+    }
+
+    @Test
+    public void boundaries_resynchronize_after_an_insertion() throws IOException {
+        byte[] data = BlobStoreTest.randomBytes(200000, 7L);
+        byte[] shifted = new byte[data.length + 1];
+        System.arraycopy(data, 0, shifted, 1, data.length);
+
+        List<String> original = digests(data);
+        List<String> edited = digests(shifted);
+        int shared = 0;
+        for (String digest : edited) {
+            if (original.contains(digest)) {
+                shared = shared + 1;
+            }
+        }
+        assertThat(shared >= original.size() - 2, is(true));
+    }
+
+    @Test
+    public void empty_streams_have_no_chunks() throws IOException {
+        assertThat(new Chunker(new ByteArrayInputStream(new byte[0]), 1024).next(), is(false));
+    }
+
+    private static List<String> digests(byte[] data) throws IOException {
+        Chunker chunker = new Chunker(new ByteArrayInputStream(data), 1024);
+        List<String> digests = new ArrayList<String>();
+        while (chunker.next()) {
+            digests.add(sha1().hashBytes(chunker.buffer(), chunker.offset(), chunker.length()).toString());
+        }
+        return digests;
+    }
+}
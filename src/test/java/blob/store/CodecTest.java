@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CodecTest {
+
+    @Test
+    public void round_trip_with_every_codec() throws IOException {
+        byte[] data = sampleData(300000);
+        for (Codec codec : Arrays.asList(Codec.none(), Codec.gzip(), Codec.deflate(1), Codec.lz4(), Codec.blockDeflate(1), Codec.blockDeflate(-1))) {
+            assertThat(codec.toString(), roundTrip(codec, data), is(data));
+            assertThat(codec.toString(), roundTrip(codec, new byte[0]), is(new byte[0]));
+        }
+    }
+
+    @Test
+    public void lz4_round_trips_on_random_and_repetitive_data() throws IOException {
+        Random random = new Random(42L);
+        for (int length : new int[]{1, 4, 12, 13, 100, 65535, 65536, 65537, 200000}) {
+            byte[] noise = new byte[length];
+            random.nextBytes(noise);
+            assertThat(roundTrip(Codec.lz4(), noise), is(noise));
+
+            byte[] zeroes = new byte[length];
+            assertThat(roundTrip(Codec.lz4(), zeroes), is(zeroes));
+
+            byte[] text = sampleData(length);
+            assertThat(roundTrip(Codec.lz4(), text), is(text));
+        }
+    }
+
+    @Test
+    public void lz4_compresses_repetitive_data() throws IOException {
+        byte[] data = Strings.repeat("Hello world! ", 10000).getBytes(UTF_8);
+        assertThat(compress(Codec.lz4(), data).length < data.length / 50, is(true));
+    }
+
+    @Test
+    public void block_codecs_skip_to_any_offset() throws IOException {
+        byte[] data = sampleData(300000);
+        for (Codec codec : Arrays.asList(Codec.lz4(), Codec.blockDeflate(-1))) {
+            byte[] compressed = compress(codec, data);
+            for (int offset : new int[]{0, 1, 65535, 65536, 65537, 200000, 299999, 300000}) {
+                InputStream in = Codec.newInputStream(new ByteArrayInputStream(compressed));
+                ByteStreams.skipFully(in, offset);
+                assertThat(codec + " @" + offset, ByteStreams.toByteArray(in), is(Arrays.copyOfRange(data, offset, data.length)));
+            }
+            InputStream in = Codec.newInputStream(new ByteArrayInputStream(compressed));
+            assertThat(in.skip(400000), is(300000L));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reject_unknown_formats() throws IOException {
+        Codec.newInputStream(new ByteArrayInputStream("Hello world!".getBytes(UTF_8)));
+    }
+
+    @Test(expected = IOException.class)
+    public void reject_corrupt_lz4_blocks() throws IOException {
+        byte[] compressed = compress(Codec.lz4(), sampleData(1000));
+        for (int i = 13; i < compressed.length - 4; i++) {
+            compressed[i] = (byte) 0xff;
+        }
+        ByteStreams.toByteArray(Codec.newInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] sampleData(int length) {
+        Random random = new Random(length);
+        StringBuilder builder = new StringBuilder();
+        String[] words = {"blob", "store", "index", "key", "value", "sha1", "gzip", "lz4"};
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return Arrays.copyOf(builder.toString().getBytes(UTF_8), length);
+    }
+
+    private static byte[] compress(Codec codec, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = codec.newOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] roundTrip(Codec codec, byte[] data) throws IOException {
+        return ByteStreams.toByteArray(Codec.newInputStream(new ByteArrayInputStream(compress(codec, data))));
+    }
+}
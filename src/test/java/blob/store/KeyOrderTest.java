@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package blob.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class KeyOrderTest {
+
+    private static final String[] SEGMENTS = {"a", "b", "z", "\u00e9", "\uffe0", "\ud83d\ude00"};
+
+    @Test
+    public void iterate_like_a_sorted_set_under_random_operations() {
+        KeyTable table = new KeyTable();
+        KeyOrder order = new KeyOrder();
+        TreeSet<String> reference = new TreeSet<String>(IndexSnapshot.KEY_ORDER);
+        ReentrantLock updates = new ReentrantLock();
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 20000; i++) {
+            String key = randomKey(random);
+            if (table.containsKey(key) && random.nextBoolean()) {
+                table.remove(key);
+                order.removed(key);
+                reference.remove(key);
+            } else if (!table.containsKey(key)) {
+                table.put(key, BlobStoreTest.SAMPLE_SHA1);
+                order.added(key);
+                reference.add(key);
+            }
+            if (i % 500 == 0) {
+                String from = randomKey(random);
+                assertThat(keys(order.iterator(table, from), table), is((List<String>) new ArrayList<String>(reference.tailSet(from, true))));
+            }
+            if (i % 3000 == 0) {
+                order.rebuild(table, updates);
+            }
+        }
+
+        assertThat(keys(order.iterator(table, ""), table), is((List<String>) new ArrayList<String>(reference)));
+        order.rebuild(table, updates);
+        assertThat(keys(order.iterator(table, ""), table), is((List<String>) new ArrayList<String>(reference)));
+    }
+
+    @Test
+    public void need_a_rebuild_once_enough_keys_changed() {
+        KeyTable table = new KeyTable();
+        KeyOrder order = new KeyOrder();
+        for (int i = 0; i < 10000; i++) {
+            table.put("key-" + i, BlobStoreTest.SAMPLE_SHA1);
+            order.added("key-" + i);
+        }
+        assertThat(order.needsRebuild(), is(false));
+
+        order.iterator(table, "");
+        for (int i = 0; i < 5000; i++) {
+            table.remove("key-" + i);
+            order.removed("key-" + i);
+        }
+        assertThat(order.needsRebuild(), is(true));
+
+        order.rebuild(table, new ReentrantLock());
+        assertThat(order.needsRebuild(), is(false));
+        Iterator<String> keys = order.iterator(table, "");
+        assertThat(keys.next(), is("key-5000"));
+    }
+
+    private static String randomKey(Random random) {
+        StringBuilder key = new StringBuilder();
+        int length = 1 + random.nextInt(4);
+        for (int i = 0; i < length; i++) {
+            key.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+        }
+        return key.toString();
+    }
+
+    private static List<String> keys(Iterator<String> iterator, KeyTable table) {
+        List<String> keys = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (table.containsKey(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
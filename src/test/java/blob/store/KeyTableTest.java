@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.hash.Hashing.sha1;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class KeyTableTest {
+
+    @Test
+    public void put_get_and_remove() {
+        KeyTable table = new KeyTable();
+        table.put("foo", BlobStoreTest.SAMPLE_SHA1);
+        table.put("bar", "");
+
+        assertThat(table.get("foo"), is(BlobStoreTest.SAMPLE_SHA1));
+        assertThat(table.get("bar"), is(""));
+        assertThat(table.get("baz"), is(nullValue()));
+        assertThat(table.size(), is(2L));
+
+        table.remove("foo");
+        assertThat(table.get("foo"), is(nullValue()));
+        assertThat(table.size(), is(1L));
+    }
+
+    @Test
+    public void stay_compact() {
+        KeyTable table = new KeyTable();
+        int entries = 50000;
+        for (int i = 0; i < entries; i++) {
+            table.put("tenant/artifacts/" + (1000000000000000000L + i), BlobStoreTest.SAMPLE_SHA1);
+        }
+        assertThat(table.size(), is((long) entries));
+        // Mostly the fixed chunks at this size, see FootprintBenchmark for larger tables
+        assertThat(table.footprint() / entries < 150L, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reject_invalid_digests() {
+        new KeyTable().put("foo", "bar");
+    }
+
+    @Test
+    public void behave_like_a_map_under_random_operations() {
+        KeyTable table = new KeyTable();
+        Map<String, String> reference = new HashMap<String, String>();
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 200000; i++) {
+            String key = "key-" + random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                table.remove(key);
+                reference.remove(key);
+            } else {
+                String digest = sha1().newHasher().putInt(random.nextInt()).hash().toString();
+                table.put(key, digest);
+                reference.put(key, digest);
+            }
+        }
+
+        assertThat(table.size(), is((long) reference.size()));
+        for (Map.Entry<String, String> entry : reference.entrySet()) {
+            assertThat(table.get(entry.getKey()), is(entry.getValue()));
+        }
+        Map<String, String> copy = new HashMap<String, String>();
+        Iterator<Map.Entry<String, String>> iterator = table.copy().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        assertThat(copy, is(reference));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2012 Julien Ponge.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package blob.store;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static blob.store.Metrics.Counter.*;
+import static blob.store.Metrics.Timer.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void histograms_know_percentiles_within_a_few_percents() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getValueAtPercentile(99.0), is(0L));
+        for (long value = 1L; value <= 100000L; value++) {
+            histogram.record(value * 1000L);
+        }
+        assertThat(histogram.getCount(), is(100000L));
+        assertThat(histogram.getMax(), is(100000000L));
+        assertThat(Math.abs(histogram.getMean() - 50000500.0) < 1.0, is(true));
+        for (double percentile : new double[]{1.0, 50.0, 90.0, 99.0, 99.9}) {
+            double expected = percentile * 1000000.0;
+            long value = histogram.getValueAtPercentile(percentile);
+            assertThat(value >= expected && value <= expected * 1.04, is(true));
+        }
+        assertThat(histogram.getValueAtPercentile(100.0), is(100000000L));
+
+        for (long value : new long[]{0L, 1L, 31L, 32L, 33L, 1000L, 123456789L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertThat(LatencyHistogram.highestValue(bucket) >= value, is(true));
+            assertThat(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < value, is(true));
+        }
+    }
+
+    @Test
+    public void stores_report_operations_and_data() throws IOException {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().metrics(metrics));
+        byte[] data = new byte[10000];
+        new Random(1L).nextBytes(data);
+        store.put("a", ByteStreams.newInputStreamSupplier(data));
+        store.put("b", ByteStreams.newInputStreamSupplier(data));
+        store.put("c", ByteStreams.newInputStreamSupplier(new byte[10000]));
+        ByteStreams.toByteArray(store.get("a").get());
+        store.remove("a");
+        store.remove("b");
+        store.batch().put("d", ByteStreams.newInputStreamSupplier(data)).remove("c").commit();
+        store.compactIndex();
+
+        assertThat(metrics.getHistogram(PUT).getCount(), is(3L));
+        assertThat(metrics.getHistogram(GET).getCount(), is(1L));
+        assertThat(metrics.getHistogram(REMOVE).getCount(), is(2L));
+        assertThat(metrics.getHistogram(BATCH).getCount(), is(1L));
+        assertThat(metrics.getHistogram(STAGE).getCount(), is(4L));
+        assertThat(metrics.getHistogram(RENAME).getCount(), is(3L));
+        assertThat(metrics.getHistogram(INDEX_APPEND).getCount(), is(6L));
+        assertThat(metrics.getHistogram(INDEX_COMPACTION).getCount(), is(1L));
+        assertThat(metrics.getHistogram(PUT).getMax() > 0L, is(true));
+
+        assertThat(metrics.getCount(BYTES_IN), is(40000L));
+        assertThat(metrics.getCount(STORED_BLOBS), is(3L));
+        assertThat(metrics.getCount(DEDUPLICATED_BLOBS), is(1L));
+        assertThat(metrics.getCount(DELETED_BLOBS), is(2L));
+        assertThat(metrics.getCount(DISCARDED_TEMP_FILES), is(1L));
+        long written = metrics.getCount(BYTES_WRITTEN);
+        assertThat(written > 2 * 10000L && written < 3 * 10000L, is(true));
+        store.close();
+    }
+
+    @Test
+    public void metrics_are_exported_through_jmx() throws Exception {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        BlobStore store = new BlobStore(temporaryFolder.getRoot(), new BlobStoreOptions().metrics(metrics).cacheSize(1024L * 1024L));
+        store.put("a", ByteStreams.newInputStreamSupplier(new byte[1000]));
+        store.put("b", ByteStreams.newInputStreamSupplier(new byte[1000]));
+        ByteStreams.toByteArray(store.get("a").get());
+        ByteStreams.toByteArray(store.get("b").get());
+
+        ObjectName name = JmxMetrics.register("blob.store:type=Metrics,name=test", store, metrics);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertThat((Long) server.getAttribute(name, "PutCount"), is(2L));
+            assertThat((Long) server.getAttribute(name, "BytesIn"), is(2000L));
+            assertThat((Long) server.getAttribute(name, "DeduplicatedBlobs"), is(1L));
+            assertThat((Integer) server.getAttribute(name, "Keys"), is(2));
+            assertThat((Double) server.getAttribute(name, "DeduplicationRatio"), is(0.5));
+            assertThat((Double) server.getAttribute(name, "CacheHitRate"), is(0.5));
+            assertThat((Double) server.getAttribute(name, "CompressionRatio") < 0.1, is(true));
+            assertThat((Double) server.getAttribute(name, "GetP99Micros") > 0.0, is(true));
+            assertThat(server.getMBeanInfo(name).getAttributes().length, is(7 + 9 * 7 + 4));
+        } finally {
+            JmxMetrics.unregister(name);
+        }
+        store.close();
+    }
+}